@@ -0,0 +1,133 @@
+package com.elojodelabuelo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One processed frame as seen by every consumer: the NV21 source (a pooled buffer, in
+ * sensor orientation), its capture time and motion score, and the JPEGs encoded from it.
+ * <p>
+ * <b>Encode once:</b> JPEGs are produced lazily by {@link #getJpeg(int)}, at most once per
+ * quality tier, and then shared. The recorder, the 1 fps preview writer and
+ * <code>/stream</code> all read the same {@link #QUALITY_STREAM} bytes; the smart
+ * thumbnail just keeps a reference to the peak frame and asks for
+ * {@link #QUALITY_THUMBNAIL} once, when the clip is closed.
+ * </p>
+ * <p>
+ * <b>Lifetime:</b> reference counted like {@link FrameBufferPool.FrameBuffer}. The frame
+ * owns one reference to its source buffer and to each encoded tier
+ * ({@link JpegBufferPool.JpegBuffer}), and gives them all back when its own count drops
+ * to zero. A consumer that needs a JPEG beyond that retains the JPEG buffer itself.
+ * </p>
+ */
+public class EncodedFrame {
+
+    public static final int QUALITY_STREAM = 60; // Recording, preview clip and live stream
+    public static final int QUALITY_THUMBNAIL = 80; // Smart thumbnail
+
+    private static final int MAX_TIERS = 2;
+
+    /** Turns an NV21 frame into a JPEG (orientation is the encoder's business). */
+    public interface Encoder {
+        /** @return a JPEG buffer with one reference, handed over to the caller. */
+        JpegBufferPool.JpegBuffer encode(byte[] nv21, int quality);
+    }
+
+    private final FrameBufferPool.FrameBuffer source;
+    private final Encoder encoder;
+    private final long timestamp;
+    private final int score;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    // Encoded tiers, filled on demand (guarded by this)
+    private final int[] qualities = new int[MAX_TIERS];
+    private final JpegBufferPool.JpegBuffer[] jpegs = new JpegBufferPool.JpegBuffer[MAX_TIERS];
+    private int tiers = 0;
+
+    /**
+     * @param source NV21 frame; the caller's reference is transferred to this object.
+     * @param timestamp Capture time, epoch millis.
+     * @param score Motion score of the frame.
+     */
+    public EncodedFrame(FrameBufferPool.FrameBuffer source, Encoder encoder, long timestamp, int score) {
+        this.source = source;
+        this.encoder = encoder;
+        this.timestamp = timestamp;
+        this.score = score;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    /** @return the NV21 pixels (read-only; valid while a reference is held). */
+    public byte[] getNV21() {
+        return source.data;
+    }
+
+    /**
+     * @return the frame as JPEG at <code>quality</code>, encoding it on the first request
+     *         (callers asking for the same tier concurrently wait for a single encode).
+     *         The buffer is borrowed: valid while the caller holds this frame, or
+     *         {@link JpegBufferPool.JpegBuffer#retain()} it to keep it longer.
+     */
+    public synchronized JpegBufferPool.JpegBuffer getJpeg(int quality) {
+        for (int i = 0; i < tiers; i++) {
+            if (qualities[i] == quality)
+                return jpegs[i];
+        }
+        if (refs.get() <= 0)
+            throw new IllegalStateException("Frame already released");
+        if (tiers == MAX_TIERS)
+            throw new IllegalStateException("Too many quality tiers");
+        JpegBufferPool.JpegBuffer jpeg = encoder.encode(source.data, quality);
+        qualities[tiers] = quality;
+        jpegs[tiers] = jpeg;
+        tiers++;
+        return jpeg;
+    }
+
+    /** @return true if the tier is already encoded (no encoding cost to read it). */
+    public synchronized boolean hasJpeg(int quality) {
+        for (int i = 0; i < tiers; i++) {
+            if (qualities[i] == quality)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the source as deliberately long-lived (e.g. the peak frame kept for the whole
+     * clip), so the pool does not report it as a leak.
+     */
+    public void pin() {
+        source.pin();
+    }
+
+    /** Adds a reference. The caller must already hold one. */
+    public EncodedFrame retain() {
+        if (refs.getAndIncrement() <= 0)
+            throw new IllegalStateException("retain() on a released frame");
+        return this;
+    }
+
+    /** Drops a reference; the last one returns the NV21 and JPEG buffers to their pools. */
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left == 0) {
+            source.release();
+            synchronized (this) {
+                for (int i = 0; i < tiers; i++) {
+                    jpegs[i].release();
+                    jpegs[i] = null;
+                }
+                tiers = 0;
+            }
+        } else if (left < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+}
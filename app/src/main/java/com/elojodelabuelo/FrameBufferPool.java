@@ -0,0 +1,258 @@
+package com.elojodelabuelo;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single owner of every NV21 frame buffer in the pipeline: the camera callback buffers,
+ * rotation outputs and the detector's reference frame.
+ * <p>
+ * <b>Ownership:</b> each {@link FrameBuffer} carries a reference count. Whoever holds a
+ * reference may read the data; nobody writes into a buffer that another holder can see.
+ * The last {@link FrameBuffer#release()} returns the buffer to the pool, which hands it
+ * straight back to the {@link Lender} (the camera) while the camera is short of buffers,
+ * and keeps it for {@link #acquire()} otherwise.
+ * </p>
+ * <p>
+ * <b>Camera buffers:</b> a buffer lent to the camera counts as one reference held by the
+ * camera. When <code>onPreviewFrame</code> delivers it, {@link #adopt(byte[])} turns that
+ * reference into a normal one owned by the caller. Slow consumers therefore starve the
+ * camera instead of growing the pool, exactly like the old
+ * <code>addCallbackBuffer</code>-after-processing scheme.
+ * </p>
+ * Allocation only happens when the pool is empty, so {@link #getStatsJson()} reports the
+ * high-water mark, and buffers held for more than {@link #LEAK_AGE_MS} as leaks.
+ */
+public class FrameBufferPool {
+
+    private static final String TAG = "FrameBufferPool";
+
+    /** A buffer held longer than this (outside the camera) is reported as leaked. */
+    public static final long LEAK_AGE_MS = 5000;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_LENT = 1;
+    private static final int STATE_IN_USE = 2;
+
+    /** Receives free buffers to fill, e.g. <code>Camera.addCallbackBuffer</code>. */
+    public interface Lender {
+        void lend(byte[] data);
+    }
+
+    /** One pooled frame. Obtain via {@link #acquire()} or {@link #adopt(byte[])}. */
+    public static class FrameBuffer {
+        public final byte[] data;
+        private final FrameBufferPool pool;
+        private final AtomicInteger refs = new AtomicInteger();
+        private int state = STATE_FREE; // Guarded by pool
+        private long acquiredAt; // Guarded by pool
+        private boolean pinned; // Guarded by pool; cleared when the buffer is recycled
+
+        private FrameBuffer(FrameBufferPool pool, int size) {
+            this.pool = pool;
+            this.data = new byte[size];
+        }
+
+        /** Adds a reference. The caller must already hold one. */
+        public FrameBuffer retain() {
+            if (refs.getAndIncrement() <= 0)
+                throw new IllegalStateException("retain() on a released frame buffer");
+            return this;
+        }
+
+        /**
+         * Declares that this buffer is held on purpose for longer than
+         * {@link #LEAK_AGE_MS} (until its next release to the pool), so it is not counted
+         * as leaked.
+         */
+        public void pin() {
+            synchronized (pool) {
+                pinned = true;
+            }
+        }
+
+        /** Drops a reference; the last one returns the buffer to its pool. */
+        public void release() {
+            int left = refs.decrementAndGet();
+            if (left == 0) {
+                pool.recycle(this);
+            } else if (left < 0) {
+                throw new IllegalStateException("Frame buffer released too many times");
+            }
+        }
+    }
+
+    private final int bufferSize;
+    private final List<FrameBuffer> all = new ArrayList<FrameBuffer>();
+    private final ArrayDeque<FrameBuffer> free = new ArrayDeque<FrameBuffer>();
+    private final IdentityHashMap<byte[], FrameBuffer> byData = new IdentityHashMap<byte[], FrameBuffer>();
+    private Lender lender;
+    private int lendTarget = 0;
+    private int lentCount = 0;
+    private int inUseCount = 0;
+    private int highWater = 0;
+
+    public FrameBufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** @return a buffer with one reference owned by the caller, allocating if the pool is empty. */
+    public FrameBuffer acquire() {
+        FrameBuffer buffer;
+        synchronized (this) {
+            buffer = take();
+            markInUse(buffer);
+        }
+        buffer.refs.set(1);
+        return buffer;
+    }
+
+    /**
+     * Takes back a buffer delivered by the lender (camera callback): the lender's reference
+     * becomes the caller's.
+     *
+     * @return the buffer, or null if <code>data</code> was not lent by this pool.
+     */
+    public FrameBuffer adopt(byte[] data) {
+        synchronized (this) {
+            FrameBuffer buffer = byData.get(data);
+            if (buffer == null || buffer.state != STATE_LENT)
+                return null;
+            lentCount--;
+            markInUse(buffer);
+            return buffer; // refs is still 1 (the lender's)
+        }
+    }
+
+    /**
+     * Installs the lender and immediately lends it <code>target</code> buffers. From then
+     * on every released buffer goes back to it while it holds fewer than that.
+     */
+    public void setLender(Lender newLender, int target) {
+        synchronized (this) {
+            lender = newLender;
+            lendTarget = target;
+        }
+        refill();
+    }
+
+    /**
+     * Tops the lender back up to its target from free (or new) buffers. Needed when the
+     * pipeline keeps delivered frames for a while (queued, reference frame), since a
+     * buffer only goes back to the lender by itself when it is released.
+     */
+    public void refill() {
+        Lender target;
+        List<FrameBuffer> toLend;
+        synchronized (this) {
+            target = lender;
+            if (target == null || lentCount >= lendTarget)
+                return;
+            toLend = new ArrayList<FrameBuffer>(lendTarget - lentCount);
+            while (lentCount < lendTarget) {
+                FrameBuffer buffer = take();
+                markLent(buffer);
+                toLend.add(buffer);
+            }
+        }
+        for (FrameBuffer buffer : toLend) {
+            target.lend(buffer.data);
+        }
+    }
+
+    /**
+     * Detaches the lender and reclaims everything it still held (call after
+     * <code>Camera.release()</code>: the camera will never deliver those buffers).
+     */
+    public synchronized void clearLender() {
+        lender = null;
+        lendTarget = 0;
+        for (FrameBuffer buffer : all) {
+            if (buffer.state == STATE_LENT) {
+                buffer.refs.set(0);
+                buffer.state = STATE_FREE;
+                free.push(buffer);
+            }
+        }
+        lentCount = 0;
+    }
+
+    private void recycle(FrameBuffer buffer) {
+        Lender target = null;
+        synchronized (this) {
+            inUseCount--;
+            buffer.pinned = false;
+            if (lender != null && lentCount < lendTarget) {
+                markLent(buffer);
+                target = lender;
+            } else {
+                buffer.state = STATE_FREE;
+                free.push(buffer);
+            }
+        }
+        if (target != null) {
+            try {
+                target.lend(buffer.data);
+            } catch (RuntimeException e) {
+                // Lender went away (camera released under us); reclaimed by clearLender()
+                Log.w(TAG, "Lender rejected buffer: " + e.getMessage());
+            }
+        }
+    }
+
+    // --- Internal (hold the pool lock) ---
+
+    private FrameBuffer take() {
+        FrameBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new FrameBuffer(this, bufferSize);
+            all.add(buffer);
+            byData.put(buffer.data, buffer);
+        }
+        return buffer;
+    }
+
+    private void markInUse(FrameBuffer buffer) {
+        buffer.state = STATE_IN_USE;
+        buffer.acquiredAt = System.currentTimeMillis();
+        inUseCount++;
+        highWater = Math.max(highWater, inUseCount + lentCount);
+    }
+
+    private void markLent(FrameBuffer buffer) {
+        buffer.refs.set(1);
+        buffer.state = STATE_LENT;
+        lentCount++;
+        highWater = Math.max(highWater, inUseCount + lentCount);
+    }
+
+    /** @return unpinned buffers held by the pipeline for longer than {@link #LEAK_AGE_MS}. */
+    public synchronized int getLeakedCount() {
+        long cutoff = System.currentTimeMillis() - LEAK_AGE_MS;
+        int leaked = 0;
+        for (FrameBuffer buffer : all) {
+            if (buffer.state == STATE_IN_USE && !buffer.pinned && buffer.acquiredAt < cutoff)
+                leaked++;
+        }
+        return leaked;
+    }
+
+    /**
+     * Pool diagnostics as JSON: <code>{"allocated":N, "free":N, "lent":N, "inUse":N,
+     * "highWater":N, "leaked":N}</code>.
+     */
+    public synchronized String getStatsJson() {
+        return "{\"allocated\":" + all.size() + ", \"free\":" + free.size() + ", \"lent\":" + lentCount
+                + ", \"inUse\":" + inUseCount + ", \"highWater\":" + highWater
+                + ", \"leaked\":" + getLeakedCount() + "}";
+    }
+}
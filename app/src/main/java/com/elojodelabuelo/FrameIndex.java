@@ -0,0 +1,396 @@
+package com.elojodelabuelo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binary frame index stored next to every recording (<code>video_X.mjpeg</code> ->
+ * <code>video_X.idx</code>).
+ * <p>
+ * The <code>.mjpeg</code> file is a plain concatenation of JPEGs, so finding frame N
+ * otherwise means scanning for FF D8 / FF D9 markers. The index makes seeking O(1):
+ * entry N lives at <code>HEADER_SIZE + N * ENTRY_SIZE</code>.
+ * </p>
+ * <b>Layout (big-endian):</b>
+ * <pre>
+ * Header (16 bytes): magic "EOJI" | int version | int entrySize | int reserved
+ * Entry  (24 bytes): long offset  | int length  | long timestampMs | int motionScore
+ * </pre>
+ * Clips recorded before the index existed get one built by a single marker scan the
+ * first time they are read (see {@link #load(File, boolean)}); timestamps and scores are
+ * then unknown (-1). A sidecar that stops short of the clip (the recorder writes it in
+ * batches, so a crash loses up to a batch) is completed by scanning only the tail.
+ * <p>
+ * Timestamps are wall-clock, so a clock adjustment during a clip could make them go
+ * backwards; they are clamped to be non-decreasing on load, which keeps
+ * {@link #frameAtTime} a valid binary search.
+ * </p>
+ */
+public class FrameIndex {
+
+    private static final String TAG = "FrameIndex";
+    private static final int CACHE_SIZE = 4;
+    private static final Pattern FPS_PATTERN = Pattern.compile("_(\\d+)fps");
+
+    public static final int MAGIC = 0x454F4A49; // "EOJI"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 24;
+
+    /** Recently used indexes, keyed by clip path. Access-ordered for LRU eviction. */
+    private static final Map<String, FrameIndex> cache = new LinkedHashMap<String, FrameIndex>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FrameIndex> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /** @return the sidecar index file for a recording. */
+    public static File indexFileFor(File video) {
+        String name = video.getName();
+        if (name.endsWith(".mjpeg"))
+            name = name.substring(0, name.length() - ".mjpeg".length());
+        return new File(video.getParentFile(), name + ".idx");
+    }
+
+    private final long videoLength;
+    private final long videoModified;
+    private final int count;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final int[] scores;
+
+    private FrameIndex(File video, int count, long[] offsets, int[] lengths, long[] timestamps, int[] scores) {
+        this.videoLength = video.length();
+        this.videoModified = video.lastModified();
+        this.count = count;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.timestamps = timestamps;
+        this.scores = scores;
+        for (int i = 1; i < count; i++) {
+            if (timestamps[i] < timestamps[i - 1])
+                timestamps[i] = timestamps[i - 1]; // Clock set back mid-clip
+        }
+    }
+
+    /**
+     * Returns the index of a clip, from the cache, the sidecar, or a one-off scan.
+     *
+     * @param video The <code>.mjpeg</code> clip.
+     * @param persist Write a sidecar when the index had to be rebuilt by scanning
+     *                (must be false for a clip that is still being recorded).
+     */
+    public static FrameIndex load(File video, boolean persist) throws IOException {
+        String key = video.getAbsolutePath();
+        synchronized (cache) {
+            FrameIndex cached = cache.get(key);
+            if (cached != null && cached.videoLength == video.length() && cached.videoModified == video.lastModified())
+                return cached;
+        }
+
+        FrameIndex index = readSidecar(video);
+        if (index == null) {
+            index = scan(video, 0);
+            if (persist)
+                index.writeSidecar(video);
+        } else if (index.getIndexedEnd() < video.length()) {
+            // Frames recorded after the last flushed batch (crash or kill mid-recording,
+            // or a clip still being written): find them by scanning only the tail
+            FrameIndex tail = scan(video, index.getIndexedEnd());
+            if (tail.count > 0) {
+                index = index.extend(video, tail);
+                if (persist)
+                    index.writeSidecar(video);
+            }
+        }
+        synchronized (cache) {
+            cache.put(key, index);
+        }
+        return index;
+    }
+
+    public int getFrameCount() {
+        return count;
+    }
+
+    public long getOffset(int frame) {
+        return offsets[frame];
+    }
+
+    public int getLength(int frame) {
+        return lengths[frame];
+    }
+
+    /** @return capture time in epoch millis, or -1 if unknown (scanned clip). */
+    public long getTimestamp(int frame) {
+        return timestamps[frame];
+    }
+
+    /** @return motion score of the frame, or -1 if unknown (scanned clip). */
+    public int getScore(int frame) {
+        return scores[frame];
+    }
+
+    /**
+     * Maps a position in the clip to a frame number, using the recorded timestamps when
+     * available and the <code>_Nfps</code> suffix of the file name otherwise.
+     *
+     * @param millis Milliseconds since the first frame.
+     * @return the last frame captured at or before that time, clamped to the clip.
+     */
+    public int frameAtTime(long millis, String fileName) {
+        if (count == 0)
+            return -1;
+        int frame;
+        if (timestamps[0] >= 0) {
+            // Last frame with timestamp <= target (upper bound - 1; equal timestamps are
+            // possible after clamping)
+            long target = timestamps[0] + millis;
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[mid] <= target)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            frame = lo - 1;
+        } else {
+            int fps = 15;
+            Matcher m = FPS_PATTERN.matcher(fileName);
+            if (m.find())
+                fps = Integer.parseInt(m.group(1));
+            frame = (int) (millis * fps / 1000);
+        }
+        return Math.max(0, Math.min(frame, count - 1));
+    }
+
+    /** @return the clip offset just past the last indexed frame. */
+    private long getIndexedEnd() {
+        return count == 0 ? 0 : offsets[count - 1] + lengths[count - 1];
+    }
+
+    /**
+     * @return this index followed by the frames of <code>tail</code> (a scan past
+     *         {@link #getIndexedEnd()}). Their timestamps are unknown, so they are
+     *         extrapolated at the indexed frames' average interval.
+     */
+    private FrameIndex extend(File video, FrameIndex tail) {
+        int total = count + tail.count;
+        long[] newOffsets = Arrays.copyOf(offsets, total);
+        int[] newLengths = Arrays.copyOf(lengths, total);
+        long[] newTimestamps = Arrays.copyOf(timestamps, total);
+        int[] newScores = Arrays.copyOf(scores, total);
+        boolean timed = count > 0 && timestamps[0] >= 0;
+        long interval = count > 1 ? (timestamps[count - 1] - timestamps[0]) / (count - 1) : 0;
+        for (int i = 0; i < tail.count; i++) {
+            newOffsets[count + i] = tail.offsets[i];
+            newLengths[count + i] = tail.lengths[i];
+            newTimestamps[count + i] = timed ? timestamps[count - 1] + interval * (i + 1) : -1;
+            newScores[count + i] = -1;
+        }
+        Log.d(TAG, "Recovered " + tail.count + " unindexed frames at the end of " + video.getName());
+        return new FrameIndex(video, total, newOffsets, newLengths, newTimestamps, newScores);
+    }
+
+    private static FrameIndex readSidecar(File video) {
+        File file = indexFileFor(video);
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteBuffer buf = ByteBuffer.allocate((int) file.length());
+            while (buf.hasRemaining() && in.getChannel().read(buf) > 0) {
+            }
+            buf.flip();
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION
+                    || buf.getInt() != ENTRY_SIZE)
+                return null;
+            buf.getInt(); // reserved
+
+            int max = buf.remaining() / ENTRY_SIZE;
+            long[] offsets = new long[max];
+            int[] lengths = new int[max];
+            long[] timestamps = new long[max];
+            int[] scores = new int[max];
+            long videoLength = video.length();
+            int count = 0;
+            while (count < max) {
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                long timestamp = buf.getLong();
+                int score = buf.getInt();
+                if (offset + length > videoLength)
+                    break; // Clip still being written (index flushed ahead) or truncated
+                offsets[count] = offset;
+                lengths[count] = length;
+                timestamps[count] = timestamp;
+                scores[count] = score;
+                count++;
+            }
+            return new FrameIndex(video, count, offsets, lengths, timestamps, scores);
+        } catch (IOException e) {
+            Log.e(TAG, "Unreadable index " + file.getName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds an index by a single pass over the clip, looking for JPEG SOI (FF D8) and
+     * EOI (FF D9) markers (the same framing the dashboard player relies on). A trailing
+     * frame without its EOI (cut short) is left out.
+     *
+     * @param start Offset to scan from (a frame boundary).
+     */
+    private static FrameIndex scan(File video, long start) throws IOException {
+        long[] offsets = new long[256];
+        int[] lengths = new int[256];
+        int count = 0;
+
+        FileInputStream in = new FileInputStream(video);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            in.getChannel().position(start);
+            long base = start;
+            long frameStart = -1;
+            int prev = -1;
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    int b = buf[i] & 0xFF;
+                    if (prev == 0xFF) {
+                        if (frameStart < 0 && b == 0xD8) {
+                            frameStart = base + i - 1;
+                        } else if (frameStart >= 0 && b == 0xD9) {
+                            if (count == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                                lengths = Arrays.copyOf(lengths, count * 2);
+                            }
+                            offsets[count] = frameStart;
+                            lengths[count] = (int) (base + i + 1 - frameStart);
+                            count++;
+                            frameStart = -1;
+                            b = -1; // Don't let this byte pair with the next one
+                        }
+                    }
+                    prev = b;
+                }
+                base += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        long[] timestamps = new long[count];
+        int[] scores = new int[count];
+        Arrays.fill(timestamps, -1);
+        Arrays.fill(scores, -1);
+        Log.d(TAG, "Scanned " + video.getName() + ": " + count + " frames");
+        return new FrameIndex(video, count, offsets, lengths, timestamps, scores);
+    }
+
+    private void writeSidecar(File video) {
+        try {
+            Writer writer = new Writer(indexFileFor(video));
+            for (int i = 0; i < count; i++) {
+                writer.append(offsets[i], lengths[i], timestamps[i], scores[i]);
+            }
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save index for " + video.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends index entries while a clip is being recorded.
+     * <p>
+     * Entries are collected in a small reusable buffer and written in batches of
+     * {@link #BATCH_ENTRIES}, so the recorder pays one extra <code>write()</code> every
+     * couple of seconds instead of one per frame. A failing index never interrupts the
+     * recording: the writer just stops (readers fall back to scanning the clip).
+     * </p>
+     */
+    public static class Writer {
+        private static final int BATCH_ENTRIES = 32;
+
+        private final File file;
+        private FileOutputStream out;
+        private final ByteBuffer batch = ByteBuffer.allocate(BATCH_ENTRIES * ENTRY_SIZE);
+        private int entryCount = 0;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.out = new FileOutputStream(file);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(ENTRY_SIZE).putInt(0);
+            out.write(header.array());
+        }
+
+        public void append(long offset, int length, long timestampMs, int motionScore) {
+            if (out == null)
+                return;
+            batch.putLong(offset).putInt(length).putLong(timestampMs).putInt(motionScore);
+            entryCount++;
+            if (!batch.hasRemaining())
+                flush();
+        }
+
+        public void flush() {
+            if (out == null || batch.position() == 0)
+                return;
+            try {
+                out.write(batch.array(), 0, batch.position());
+            } catch (IOException e) {
+                Log.e(TAG, "Index write failed, disabling: " + file.getName());
+                abandon();
+            }
+            batch.clear();
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public void close() {
+            flush();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                out = null;
+            }
+        }
+
+        private void abandon() {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+            out = null;
+            file.delete(); // A partial index is worse than none
+        }
+    }
+}
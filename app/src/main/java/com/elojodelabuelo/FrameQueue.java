@@ -0,0 +1,161 @@
+package com.elojodelabuelo;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Bounded hand-off of {@link EncodedFrame}s from the camera thread to the processing
+ * thread.
+ * <p>
+ * <b>Why:</b> posting one <code>Runnable</code> per frame to the processing
+ * <code>Handler</code> is an unbounded queue. Every frame waiting in it also holds a
+ * camera callback buffer, so a slow SD card silently starves the camera. Here the depth
+ * is explicit, overflow follows a policy, and every decision is counted.
+ * </p>
+ * <p>
+ * <b>Overflow:</b>
+ * <ul>
+ *     <li>Idle (live view only): {@link #POLICY_DROP_OLDEST} discards the stalest queued
+ *     frame (lowest latency), {@link #POLICY_DROP_NEWEST} refuses the incoming one (smooth
+ *     but late). Either way the dropped frame's buffer goes straight back to the camera.</li>
+ *     <li>Recording ({@link #offer} with <code>lossless</code>): nothing is dropped. The
+ *     frame is queued beyond the capacity and counted as backpressure; while
+ *     {@link #isFull()} the caller stops feeding the camera extra buffers, so capture slows
+ *     down to what the disk sustains.</li>
+ * </ul>
+ * </p>
+ * <b>Scheduling:</b> like the stream viewers in {@link NanoHttpServer}, the consumer is
+ * only woken when it is idle ({@link #offer} returns true); it then drains with
+ * {@link #poll()} until null.
+ * All methods are thread safe.
+ */
+public class FrameQueue {
+
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_DROP_NEWEST = 1;
+
+    private final int capacity;
+    private final ArrayDeque<EncodedFrame> frames = new ArrayDeque<EncodedFrame>();
+    private int policy;
+    private boolean scheduled = false;
+
+    // Metrics (guarded by this)
+    private long offered = 0;
+    private long droppedOldest = 0;
+    private long droppedNewest = 0;
+    private long backpressured = 0;
+    private int maxDepth = 0;
+    private long depthSum = 0; // Depth seen by each offer, for the average
+
+    public FrameQueue(int capacity, int policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        this.capacity = capacity;
+        setPolicy(policy);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setPolicy(int policy) {
+        this.policy = policy == POLICY_DROP_NEWEST ? POLICY_DROP_NEWEST : POLICY_DROP_OLDEST;
+    }
+
+    public synchronized int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Enqueues a frame, transferring the caller's reference to the queue (a dropped frame
+     * is released here).
+     *
+     * @param lossless Never drop (recording): overflow is queued and counted as
+     *                 backpressure instead, see {@link #isFull()}.
+     * @return true if the caller must schedule the consumer.
+     */
+    public boolean offer(EncodedFrame frame, boolean lossless) {
+        EncodedFrame dropped = null;
+        boolean schedule = false;
+        synchronized (this) {
+            offered++;
+            depthSum += frames.size();
+            if (frames.size() < capacity) {
+                frames.add(frame);
+            } else if (lossless) {
+                frames.add(frame);
+                backpressured++;
+            } else if (policy == POLICY_DROP_NEWEST) {
+                droppedNewest++;
+                dropped = frame;
+            } else {
+                droppedOldest++;
+                dropped = frames.poll();
+                frames.add(frame);
+            }
+            maxDepth = Math.max(maxDepth, frames.size());
+            if (dropped != frame && !scheduled) {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+        if (dropped != null) {
+            dropped.release(); // Outside the lock: may hand the buffer back to the camera
+        }
+        return schedule;
+    }
+
+    /**
+     * Next frame for the consumer, whose reference passes to the caller. A null return
+     * ends the drain: the next {@link #offer} will ask for a new one.
+     */
+    public synchronized EncodedFrame poll() {
+        EncodedFrame frame = frames.poll();
+        if (frame == null)
+            scheduled = false;
+        return frame;
+    }
+
+    /** @return true if the queue is at or above its capacity. */
+    public synchronized boolean isFull() {
+        return frames.size() >= capacity;
+    }
+
+    /** @return frames discarded by the drop policy so far. */
+    public synchronized long getDroppedCount() {
+        return droppedOldest + droppedNewest;
+    }
+
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /** Releases every queued frame (shutdown). */
+    public void clear() {
+        while (true) {
+            EncodedFrame frame;
+            synchronized (this) {
+                frame = frames.poll();
+                if (frame == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            frame.release();
+        }
+    }
+
+    /**
+     * Queue diagnostics as JSON: <code>{"policy":"oldest"|"newest", "capacity":N,
+     * "depth":N, "maxDepth":N, "avgDepth":F, "offered":N, "droppedOldest":N,
+     * "droppedNewest":N, "backpressure":N}</code>.
+     */
+    public synchronized String getStatsJson() {
+        double avgDepth = offered > 0 ? (double) depthSum / offered : 0;
+        return String.format(Locale.US,
+                "{\"policy\":\"%s\", \"capacity\":%d, \"depth\":%d, \"maxDepth\":%d, \"avgDepth\":%.2f, "
+                        + "\"offered\":%d, \"droppedOldest\":%d, \"droppedNewest\":%d, \"backpressure\":%d}",
+                policy == POLICY_DROP_NEWEST ? "newest" : "oldest", capacity, frames.size(), maxDepth,
+                avgDepth, offered, droppedOldest, droppedNewest, backpressured);
+    }
+}
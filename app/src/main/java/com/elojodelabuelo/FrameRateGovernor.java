@@ -0,0 +1,196 @@
+package com.elojodelabuelo;
+
+import java.util.Locale;
+
+/**
+ * Decides which camera frames get processed (detection, encoding, queueing).
+ * <p>
+ * Replaces the fixed "process one, skip one" toggle: the rate now follows what the
+ * frames are needed for.
+ * <ul>
+ *     <li><b>recording</b> / <b>streaming</b> / recent <b>motion</b>: every frame
+ *     (the camera's own rate).</li>
+ *     <li><b>idle</b>: {@link #IDLE_FPS}, enough to notice someone walking in.</li>
+ * </ul>
+ * That base rate is then capped by whichever limit is strongest:
+ * <ul>
+ *     <li><b>thermal</b>: the {@link ThermalPolicy} level's rate; nothing at all at
+ *     {@link ThermalPolicy#LEVEL_CRITICAL}.</li>
+ *     <li><b>battery</b>: {@link #LOW_BATTERY_FPS} when low and not charging.</li>
+ *     <li><b>queue</b> / <b>encode</b>: the rate the processing thread actually sustains
+ *     (average encode time), tightened further while the capture queue backs up.</li>
+ * </ul>
+ * </p>
+ * The current rate and the reason that set it are reported by {@link #getStatsJson()}.
+ * Decisions run on the camera thread; {@link #onEncodeTime(long)} may be called from the
+ * processing thread.
+ */
+public class FrameRateGovernor {
+
+    /** Marker rate: no limit, process every frame the camera delivers. */
+    public static final float FULL_FPS = 0;
+    /** Reported rate while processing is halted (critical temperature). */
+    public static final float HALTED_FPS = -1;
+
+    public static final float IDLE_FPS = 5;
+    public static final float LOW_BATTERY_FPS = 3;
+
+    /** A score above half the trigger threshold keeps the full rate for this long. */
+    private static final long MOTION_HOLD_MS = 3000;
+    /** Only use this share of the measured processing capacity (headroom for I/O). */
+    private static final float CAPACITY_SHARE = 0.8f;
+    /** Frames arriving this early still count as on time (camera jitter). */
+    private static final long JITTER_MS = 5;
+
+    public static final String REASON_RECORDING = "recording";
+    public static final String REASON_STREAMING = "streaming";
+    public static final String REASON_MOTION = "motion";
+    public static final String REASON_IDLE = "idle";
+    public static final String REASON_THERMAL = "thermal";
+    public static final String REASON_BATTERY = "battery";
+    public static final String REASON_QUEUE = "queue";
+    public static final String REASON_ENCODE = "encode";
+
+    // Slow-changing conditions, refreshed by the service
+    private volatile int thermalLevel = ThermalPolicy.LEVEL_NORMAL;
+    private volatile float thermalFps = FULL_FPS;
+    private volatile boolean batteryLow = false;
+
+    // Processing cost, exponential moving average in 1/16 ms (processing thread)
+    private volatile int encodeTimeAvg16 = 0;
+
+    // Camera thread state
+    private long lastMotionTime = 0;
+    private long lastProcessedTime = 0;
+    private volatile float targetFps = FULL_FPS;
+    private volatile String reason = REASON_IDLE;
+    private volatile long processed = 0;
+    private volatile long skipped = 0;
+
+    /**
+     * @param level Current {@link ThermalPolicy} level.
+     * @param maxFps Processing cap of that level ({@link ThermalPolicy#maxFpsOf(int)}).
+     */
+    public void setThermal(int level, float maxFps) {
+        this.thermalFps = maxFps;
+        this.thermalLevel = level;
+    }
+
+    public void setBatteryLow(boolean batteryLow) {
+        this.batteryLow = batteryLow;
+    }
+
+    /**
+     * Feeds the motion score of a processed frame (camera thread). The score must compare
+     * with {@link #holdLevel(int)} as the exact score would; see
+     * {@link MotionDetector#detect(byte[], int, int, MotionGrid, int, int)}.
+     */
+    public void onMotionScore(int score, int threshold, long now) {
+        if (score > holdLevel(threshold))
+            lastMotionTime = now;
+    }
+
+    /** @return score above which a frame keeps the full rate, for a trigger threshold. */
+    public static int holdLevel(int threshold) {
+        return threshold / 2;
+    }
+
+    /** Feeds the time spent encoding and handing out one frame (processing thread). */
+    public void onEncodeTime(long millis) {
+        int sample = (int) Math.min(millis, 10000) << 4;
+        int avg = encodeTimeAvg16;
+        encodeTimeAvg16 = avg == 0 ? sample : avg + ((sample - avg) >> 3); // 1/8 weight
+    }
+
+    /**
+     * Picks the rate for the current conditions and decides whether this frame is
+     * processed. Call once per camera frame, on the camera thread.
+     *
+     * @param queueDepth Frames waiting for the processing thread.
+     * @return true to process the frame, false to hand it straight back to the camera.
+     */
+    public boolean shouldProcess(long now, boolean recording, boolean streaming, int queueDepth) {
+        float fps;
+        String why;
+        if (recording) {
+            fps = FULL_FPS;
+            why = REASON_RECORDING;
+        } else if (streaming) {
+            fps = FULL_FPS;
+            why = REASON_STREAMING;
+        } else if (now - lastMotionTime < MOTION_HOLD_MS) {
+            fps = FULL_FPS;
+            why = REASON_MOTION;
+        } else {
+            fps = IDLE_FPS;
+            why = REASON_IDLE;
+        }
+
+        int avg16 = encodeTimeAvg16;
+        if (avg16 > 0 && (recording || streaming)) {
+            // Only frames that get encoded cost this much
+            float capacity = CAPACITY_SHARE * 16000f / avg16;
+            String capWhy = REASON_ENCODE;
+            if (queueDepth > 1) {
+                capacity /= queueDepth; // Backlog: leave the processor time to catch up
+                capWhy = REASON_QUEUE;
+            }
+            if (isBelow(capacity, fps)) {
+                fps = capacity;
+                why = capWhy;
+            }
+        }
+        if (batteryLow && isBelow(LOW_BATTERY_FPS, fps)) {
+            fps = LOW_BATTERY_FPS;
+            why = REASON_BATTERY;
+        }
+        int thermal = thermalLevel;
+        float thermalCap = thermalFps;
+        if (thermalCap != FULL_FPS && isBelow(thermalCap, fps)) {
+            fps = thermalCap;
+            why = REASON_THERMAL;
+        }
+        if (ThermalPolicy.isHalted(thermal)) {
+            targetFps = HALTED_FPS;
+            reason = REASON_THERMAL;
+            skipped++;
+            return false;
+        }
+        targetFps = fps;
+        reason = why;
+
+        long sinceLast = now - lastProcessedTime;
+        if (fps == FULL_FPS || sinceLast < 0 // Wall clock set back
+                || sinceLast >= (long) (1000 / fps) - JITTER_MS) {
+            lastProcessedTime = now;
+            processed++;
+            return true;
+        }
+        skipped++;
+        return false;
+    }
+
+    /** @return true if <code>fps</code> is a stricter limit than <code>current</code>. */
+    private static boolean isBelow(float fps, float current) {
+        return current == FULL_FPS || fps < current;
+    }
+
+    public float getTargetFps() {
+        return targetFps;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Governor state as JSON: <code>{"fps":F, "reason":"...", "encodeMs":F,
+     * "processed":N, "skipped":N}</code>; <code>fps</code> is 0 when every frame is
+     * processed, -1 while halted.
+     */
+    public String getStatsJson() {
+        return String.format(Locale.US,
+                "{\"fps\":%.1f, \"reason\":\"%s\", \"encodeMs\":%.1f, \"processed\":%d, \"skipped\":%d}",
+                targetFps, reason, encodeTimeAvg16 / 16f, processed, skipped);
+    }
+}
@@ -0,0 +1,144 @@
+package com.elojodelabuelo;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycled output buffers for encoded JPEGs.
+ * <p>
+ * <b>Why:</b> <code>ByteArrayOutputStream</code> regrows its array during every encode
+ * and <code>toByteArray()</code> copies the result once more, i.e. two or three 20-40 KB
+ * arrays of garbage per frame, which on Dalvik means frequent GC pauses. A
+ * {@link JpegBuffer} is itself the <code>OutputStream</code> the encoder writes into, its
+ * array is read in place through {@link JpegBuffer#getData()} /
+ * {@link JpegBuffer#getLength()}, and it keeps its grown capacity when recycled, so after
+ * a few frames no encode allocates a byte array any more.
+ * </p>
+ * <b>Lifetime:</b> reference counted like {@link FrameBufferPool.FrameBuffer}. Every
+ * consumer that keeps the bytes beyond the call that gave them (a stream viewer's pending
+ * frame, a cached {@link EncodedFrame} tier) holds a reference; the last release puts the
+ * buffer back in the pool.
+ */
+public class JpegBufferPool {
+
+    /** Starting capacity; a 352x288 frame at quality 60 is typically 15-25 KB. */
+    private static final int INITIAL_CAPACITY = 32 * 1024;
+
+    /** A growable JPEG byte sink. Obtain via {@link #acquire()}. */
+    public static class JpegBuffer extends OutputStream {
+        private final JpegBufferPool pool;
+        private final AtomicInteger refs = new AtomicInteger();
+        private byte[] data;
+        private int length;
+
+        private JpegBuffer(JpegBufferPool pool, int capacity) {
+            this.pool = pool;
+            this.data = new byte[capacity];
+        }
+
+        /** @return the backing array; only the first {@link #getLength()} bytes are valid. */
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** @return the size of the backing array, i.e. the memory this buffer holds. */
+        public int getCapacity() {
+            return data.length;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(length + 1);
+            data[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+
+        private void ensureCapacity(int needed) {
+            if (needed > data.length) {
+                byte[] grown = new byte[Math.max(needed, data.length + (data.length >> 1))];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+                pool.grows.incrementAndGet();
+            }
+        }
+
+        /** Adds a reference. The caller must already hold one. */
+        public JpegBuffer retain() {
+            if (refs.getAndIncrement() <= 0)
+                throw new IllegalStateException("retain() on a released JPEG buffer");
+            return this;
+        }
+
+        /** Drops a reference; the last one returns the buffer to its pool. */
+        public void release() {
+            int left = refs.decrementAndGet();
+            if (left == 0) {
+                pool.recycle(this);
+            } else if (left < 0) {
+                throw new IllegalStateException("JPEG buffer released too many times");
+            }
+        }
+    }
+
+    private final ArrayDeque<JpegBuffer> free = new ArrayDeque<JpegBuffer>();
+    private final AtomicInteger grows = new AtomicInteger();
+    private int allocated = 0;
+    private int inUse = 0;
+    private int highWater = 0;
+
+    /** @return an empty buffer with one reference owned by the caller. */
+    public JpegBuffer acquire() {
+        JpegBuffer buffer;
+        synchronized (this) {
+            buffer = free.poll();
+            if (buffer == null) {
+                buffer = new JpegBuffer(this, INITIAL_CAPACITY);
+                allocated++;
+            }
+            inUse++;
+            highWater = Math.max(highWater, inUse);
+        }
+        buffer.length = 0;
+        buffer.refs.set(1);
+        return buffer;
+    }
+
+    private synchronized void recycle(JpegBuffer buffer) {
+        inUse--;
+        free.push(buffer);
+    }
+
+    /** @return buffers created so far (flat once the pool covers the peak in use). */
+    synchronized int getAllocated() {
+        return allocated;
+    }
+
+    /** @return capacity increases so far (flat once every buffer fits the largest frame). */
+    int getGrows() {
+        return grows.get();
+    }
+
+    synchronized int getInUse() {
+        return inUse;
+    }
+
+    /**
+     * Pool diagnostics as JSON: <code>{"allocated":N, "inUse":N, "highWater":N,
+     * "grows":N}</code> (<code>grows</code>: capacity increases, should stop early on).
+     */
+    public synchronized String getStatsJson() {
+        return "{\"allocated\":" + allocated + ", \"inUse\":" + inUse + ", \"highWater\":" + highWater
+                + ", \"grows\":" + grows.get() + "}";
+    }
+}
@@ -0,0 +1,119 @@
+package com.elojodelabuelo;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-bucket latency histogram: recording a sample is a few atomic updates, no locks
+ * and no allocation, so it can sit on the camera and processing threads.
+ * <p>
+ * <b>Buckets:</b> log-linear in microseconds. Every power of two is split into
+ * {@link #SUB_BUCKETS} equal parts, so a reported percentile is at most 25% above the
+ * true value, from 1 us up to {@link #MAX_MICROS} (larger samples land in the last
+ * bucket).
+ * </p>
+ * Readers ({@link #appendJson}) see a slightly inconsistent snapshot while samples are
+ * being recorded, which is fine for diagnostics.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 25; // Powers of two up to 2^25 us = ~33 s
+    public static final long MAX_MICROS = (1L << MAGNITUDES) - 1;
+    private static final int BUCKETS = (MAGNITUDES - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /** Records one sample, measured with <code>System.nanoTime()</code>. */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0)
+            micros = 0;
+        counts.incrementAndGet(bucketOf(Math.min(micros, MAX_MICROS)));
+        total.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /** Values below 2^SUB_BUCKET_BITS get one bucket each, then 4 per power of two. */
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros); // >= SUB_BUCKET_BITS
+        int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the largest value that falls in <code>bucket</code>. */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (sub + 1) * width - 1;
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    /** Percentile of a bucket snapshot: upper bound of the bucket holding it (0 if empty). */
+    private static long percentileOf(long[] snapshot, long count, double percentile) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return upperBoundOf(i);
+        }
+        return upperBoundOf(snapshot.length - 1);
+    }
+
+    /** Forgets every sample (samples racing with the reset may survive it). */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sumMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Appends <code>{"count":N, "mean":F, "p50":F, "p95":F, "p99":F, "max":F}</code>, times
+     * in milliseconds.
+     */
+    public void appendJson(StringBuilder sb) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        double mean = count > 0 ? sumMicros.get() / (double) count / 1000.0 : 0;
+        long max = maxMicros.get(); // Bucket bounds can overshoot the largest sample
+        sb.append(String.format(Locale.US,
+                "{\"count\":%d, \"mean\":%.2f, \"p50\":%.2f, \"p95\":%.2f, \"p99\":%.2f, \"max\":%.2f}",
+                count, mean,
+                Math.min(percentileOf(snapshot, count, 50), max) / 1000.0,
+                Math.min(percentileOf(snapshot, count, 95), max) / 1000.0,
+                Math.min(percentileOf(snapshot, count, 99), max) / 1000.0,
+                max / 1000.0));
+    }
+}
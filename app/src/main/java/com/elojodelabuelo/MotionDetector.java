@@ -1,47 +1,404 @@
 package com.elojodelabuelo;
 
 /**
- * Detects motion by comparing the current frame with the previous one.
+ * Detects motion by comparing the luminance (Y plane) of each frame against a reference.
  * Uses a stride to skip pixels for performance.
+ * <p>
+ * Two modes are available and can be switched at runtime (the reference is rebuilt from
+ * the next frame):
+ * <ul>
+ *     <li>{@link #MODE_FRAME_DIFF}: reference is the previous frame. Reacts instantly but
+ *     misses subjects that move only slightly between two frames.</li>
+ *     <li>{@link #MODE_BACKGROUND}: reference is an exponentially weighted running average
+ *     of past frames, kept in integer fixed point. Slow subjects accumulate difference
+ *     against the learned background instead of against their own previous position.</li>
+ * </ul>
+ * Both return the same score: the number of sampled pixels whose luminance differs from
+ * the reference by more than {@link #THRESHOLD}. {@link #detect} additionally breaks the
+ * score down into a {@link MotionGrid}, computed in the same pass.
+ * </p>
+ * <p>
+ * An optional {@link MotionMask} removes ignore zones from the scan: the loops walk the
+ * mask's precompiled visible row spans, so masked pixels are never read.
+ * </p>
+ * <p>
+ * <b>Early exit:</b> when given a trigger threshold (idle surveillance),
+ * {@link #detect(byte[], int, int, MotionGrid, int, int)} checks after every row whether
+ * the rows left hold enough lattice samples to move the score across either threshold,
+ * and stops when they do not. The decisions are therefore exactly those of a full scan.
+ * Motion stops the scan as soon as the trigger is certain; a static scene only skips the
+ * last rows, which can no longer matter.
+ * </p>
+ * <p>
+ * <b>Reference by retention:</b> frames passed as a {@link FrameBufferPool.FrameBuffer}
+ * are not copied. The detector keeps a reference to the buffer as the previous frame
+ * and releases it when the next one arrives. Plain <code>byte[]</code> frames, which the
+ * caller may reuse, are still copied.
+ * </p>
  */
 public class MotionDetector {
 
-    private byte[] previousFrame;
+    public static final int MODE_FRAME_DIFF = 0;
+    public static final int MODE_BACKGROUND = 1;
+
+    /** Default background learning rate, in percent of the new frame blended in per frame. */
+    public static final int DEFAULT_LEARNING_RATE = 2;
+
     private static final int STRIDE = 10;
     private static final int THRESHOLD = 50; // Pixel difference threshold
     private static final int MOTION_PIXEL_COUNT = 50; // Number of different pixels to trigger motion
 
+    // Fixed point: background values are stored as luminance << FP_SHIFT
+    private static final int FP_SHIFT = 8;
+    private static final int FP_ONE = 1 << FP_SHIFT;
+
+    private volatile int mode = MODE_FRAME_DIFF;
+    private volatile int learningRate = DEFAULT_LEARNING_RATE * FP_ONE / 100; // Weight of new frame, in 1/FP_ONE
+    private volatile MotionMask mask = MotionMask.NONE;
+    private int activeMode = -1; // Mode the current reference was built for
+    private MotionMask activeMask; // Mask the current reference was built for
+
+    private byte[] previousFrame; // MODE_FRAME_DIFF: luminance plane of the previous frame
+    private int previousSize = -1; // Luminance bytes of previousFrame that are valid
+    private FrameBufferPool.FrameBuffer previousBuffer; // Owner of previousFrame when retained
+    private FrameBufferPool.FrameBuffer currentBuffer; // Frame being scored, if pooled
+    private int[] background; // MODE_BACKGROUND: one fixed-point value per sampled pixel
+
+    // Grid layout lookup tables, rebuilt only when the frame or grid size changes
+    private int[] cellColOfX; // x -> grid column
+    private int[] cellBaseOfY; // y -> first cell index of the grid row
+    private int layoutWidth;
+    private int layoutHeight;
+    private int layoutCols;
+    private int layoutRows;
+
+    // Diagnostics (written by the detecting thread only)
+    private volatile long framesScanned = 0;
+    private volatile long samplesScanned = 0;
+    private volatile long earlyExits = 0;
+
+    private final MotionGrid scratchGrid = new MotionGrid(); // For getMotionScore()
+
+    public void setMode(int mode) {
+        this.mode = mode == MODE_BACKGROUND ? MODE_BACKGROUND : MODE_FRAME_DIFF;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /** Replaces the ignore zones. Takes effect (and resets the reference) on the next frame. */
+    public void setMask(MotionMask mask) {
+        this.mask = mask != null ? mask : MotionMask.NONE;
+    }
+
+    public MotionMask getMask() {
+        return mask;
+    }
+
+    /**
+     * @param percent Share of each new frame blended into the background (1-100).
+     *                Lower values remember the scene longer.
+     */
+    public void setLearningRate(int percent) {
+        int rate = percent * FP_ONE / 100;
+        if (rate < 1) rate = 1;
+        if (rate > FP_ONE) rate = FP_ONE;
+        learningRate = rate;
+    }
+
     public int getMotionScore(byte[] currentFrame, int width, int height) {
-        if (previousFrame == null || previousFrame.length != currentFrame.length) {
-            previousFrame = currentFrame.clone();
-            return 0;
+        return detect(currentFrame, width, height, scratchGrid);
+    }
+
+    /**
+     * Scores a frame and fills <code>grid</code> with per-cell changed-sample counts.
+     *
+     * @param grid Reused result holder; overwritten. <code>grid.total</code> equals the
+     *             returned score.
+     * @return number of changed sampled pixels.
+     */
+    public int detect(byte[] currentFrame, int width, int height, MotionGrid grid) {
+        return detect(currentFrame, width, height, grid, -1);
+    }
+
+    /**
+     * Scores a pooled frame. In frame-difference mode the detector retains
+     * <code>frame</code> as its next reference instead of copying it; the caller keeps its
+     * own reference and releases it as usual.
+     *
+     * @see #detect(byte[], int, int, MotionGrid, int, int)
+     */
+    public int detect(FrameBufferPool.FrameBuffer frame, int width, int height, MotionGrid grid,
+                      int triggerThreshold, int secondThreshold) {
+        currentBuffer = frame;
+        try {
+            return detect(frame.data, width, height, grid, triggerThreshold, secondThreshold);
+        } finally {
+            currentBuffer = null;
         }
+    }
 
-        int diffCount = 0;
+    /**
+     * Drops the reference frame (and the pooled buffer holding it, if any). The next frame
+     * seeds a new one.
+     */
+    public void releaseReference() {
+        if (previousBuffer != null) {
+            previousBuffer.release();
+            previousBuffer = null;
+        }
+        previousFrame = null;
+        previousSize = -1;
+    }
+
+    /** Same as {@link #detect(byte[], int, int, MotionGrid, int, int)} with one threshold. */
+    public int detect(byte[] currentFrame, int width, int height, MotionGrid grid, int triggerThreshold) {
+        return detect(currentFrame, width, height, grid, triggerThreshold, -1);
+    }
+
+    /**
+     * Like {@link #detect(byte[], int, int, MotionGrid)}, but in frame-difference mode stops
+     * the scan once the score's side of each threshold is known. The returned score is then a lower bound of the full-scan score that compares
+     * with both thresholds exactly as the full-scan score would (<code>&gt;</code> either
+     * one iff the full score is), and <code>grid</code> only holds the samples scanned.
+     *
+     * @param triggerThreshold Score that triggers recording, or -1 for an exact full scan.
+     * @param secondThreshold Another level the caller compares the score with (e.g. the
+     *                        governor's motion hold), or -1 for none.
+     */
+    public int detect(byte[] currentFrame, int width, int height, MotionGrid grid, int triggerThreshold,
+                      int secondThreshold) {
+        int currentMode = mode;
+        MotionMask currentMask = mask;
+        if (currentMode != activeMode || currentMask != activeMask) {
+            // Switching modes or masks: drop the old reference (masked pixels were never
+            // learned), the next frame seeds the new one
+            releaseReference();
+            background = null;
+            activeMode = currentMode;
+            activeMask = currentMask;
+        }
+        grid.clear();
+        prepareLayout(width, height, grid);
+        MotionMask.Compiled spans = currentMask.compile(width, height);
+        if (currentMode == MODE_BACKGROUND) {
+            // Every sample must be blended into the model, so there is nothing to skip
+            grid.total = getBackgroundScore(currentFrame, width, height, spans, grid.cells);
+        } else {
+            grid.total = getFrameDiffScore(currentFrame, width, height, spans, grid.cells,
+                    triggerThreshold, secondThreshold);
+        }
+        framesScanned++;
+        return grid.total;
+    }
+
+    /**
+     * Detector diagnostics as JSON: average lattice samples read per frame and how many
+     * frames stopped early.
+     */
+    public String getStatsJson() {
+        long frames = framesScanned;
+        return "{\"samplesPerFrame\":" + (frames > 0 ? samplesScanned / frames : 0)
+                + ", \"earlyExits\":" + earlyExits + ", \"frames\":" + frames + "}";
+    }
+
+    /** @return lattice samples read since creation (all frames). */
+    long getSamplesScanned() {
+        return samplesScanned;
+    }
+
+    long getEarlyExits() {
+        return earlyExits;
+    }
+
+    private void prepareLayout(int width, int height, MotionGrid grid) {
+        if (cellColOfX != null && layoutWidth == width && layoutHeight == height
+                && layoutCols == grid.cols && layoutRows == grid.rows)
+            return;
+
+        int cols = grid.cols;
+        int rows = grid.rows;
+        cellColOfX = new int[width];
+        for (int x = 0; x < width; x++) {
+            cellColOfX[x] = x * cols / width;
+        }
+        cellBaseOfY = new int[height];
+        for (int y = 0; y < height; y++) {
+            cellBaseOfY[y] = (y * rows / height) * cols;
+        }
+        layoutWidth = width;
+        layoutHeight = height;
+        layoutCols = cols;
+        layoutRows = rows;
+    }
+
+    /** First sampled index at or after <code>index</code> (samples are multiples of STRIDE). */
+    private static int firstSample(int index) {
+        return (index + STRIDE - 1) / STRIDE * STRIDE;
+    }
+
+    /** Number of lattice samples in <code>[first, end)</code>, <code>first</code> being a sample. */
+    private static int countSamples(int first, int end) {
+        return first < end ? (end - first + STRIDE - 1) / STRIDE : 0;
+    }
+
+    /**
+     * Frame difference over the lattice, row by row.
+     *
+     * @param threshold Trigger threshold for the exact early exit (see {@link #isDecided}),
+     *                  or -1 to scan every row.
+     */
+    private int getFrameDiffScore(byte[] currentFrame, int width, int height, MotionMask.Compiled spans,
+                                  int[] cells, int threshold, int secondThreshold) {
         // YUV NV21 format: Y component is the first width * height bytes.
-        // We only check luminance (Y) for motion.
+        // We only check luminance (Y) for motion, so only that plane is kept.
         int limit = width * height;
+        if (previousFrame == null || previousSize != limit) {
+            keepAsReference(currentFrame, limit);
+            return 0;
+        }
+
+        int[] spanRow = spans.rowStart;
+        int[] spanFrom = spans.spanFrom;
+        int[] spanTo = spans.spanTo;
+        int diffCount = 0;
+        int samples = 0;
+        int remaining = threshold >= 0 ? countLatticeSamples(spans, width, height) : 0;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            int cellBase = cellBaseOfY[y];
+            int rowSamples = 0;
+            for (int s = spanRow[y]; s < spanRow[y + 1]; s++) {
+                int spanEnd = rowStart + spanTo[s];
+                int first = firstSample(rowStart + spanFrom[s]);
+                rowSamples += countSamples(first, spanEnd);
+                diffCount += diffSpan(currentFrame, first, spanEnd, rowStart, cellBase, cells);
+            }
+            samples += rowSamples;
+            if (threshold >= 0) {
+                remaining -= rowSamples;
+                if (remaining > 0 && isDecided(diffCount, remaining, threshold, secondThreshold)) {
+                    earlyExits++;
+                    break;
+                }
+            }
+        }
+        samplesScanned += samples;
 
-        for (int i = 0; i < limit; i += STRIDE) {
-            int val1 = currentFrame[i] & 0xFF;
-            int val2 = previousFrame[i] & 0xFF; // previousFrame is updated at the end?
-                                                // Actually, if we update it every frame, we detect inter-frame motion.
+        // Current frame becomes the reference for the next comparison
+        keepAsReference(currentFrame, limit);
 
-            if (Math.abs(val1 - val2) > THRESHOLD) {
-                diffCount++;
+        return diffCount;
+    }
+
+    /** @return lattice samples in the visible spans of a frame. */
+    private static int countLatticeSamples(MotionMask.Compiled spans, int width, int height) {
+        int total = 0;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            for (int s = spans.rowStart[y]; s < spans.rowStart[y + 1]; s++) {
+                total += countSamples(firstSample(rowStart + spans.spanFrom[s]), rowStart + spans.spanTo[s]);
             }
         }
+        return total;
+    }
 
-        // Update previous frame for next comparison
-        // Optimization: Instead of full clone, we could just swap reference if the
-        // caller allocates new buffer.
-        // But Camera.PreviewCallback reuses the same buffer often or we get a new one.
-        // Since we need to persist the reference to 'currentFrame' as 'previousFrame'
-        // for the NEXT call,
-        // we must be careful if the buffer is reused by Camera API.
-        // With setPreviewCallbackWithBuffer, we control the buffers.
-        // For safety here, we clone. System copy is fast enough for 320x240.
-        System.arraycopy(currentFrame, 0, previousFrame, 0, currentFrame.length);
+    /**
+     * Makes <code>currentFrame</code> the reference: a pooled frame is retained (no copy),
+     * a plain array has its luminance plane copied into a detector-owned buffer.
+     */
+    private void keepAsReference(byte[] currentFrame, int limit) {
+        FrameBufferPool.FrameBuffer frame = currentBuffer;
+        if (frame != null) {
+            frame.retain();
+            if (previousBuffer != null)
+                previousBuffer.release();
+            previousBuffer = frame;
+            previousFrame = frame.data;
+        } else {
+            if (previousBuffer != null || previousFrame == null || previousFrame.length < limit) {
+                releaseReference();
+                previousFrame = new byte[limit];
+            }
+            // Luminance only, chroma is never read
+            System.arraycopy(currentFrame, 0, previousFrame, 0, limit);
+        }
+        previousSize = limit;
+    }
+
+    /**
+     * Counts the samples <code>i, i + STRIDE, ... &lt; end</code> of one row span whose
+     * luminance changed by more than {@link #THRESHOLD} since the previous frame, and adds
+     * them to their grid cells.
+     */
+    private int diffSpan(byte[] cur, int i, int end, int rowStart, int cellBase, int[] cells) {
+        byte[] prev = previousFrame;
+        int[] colOfX = cellColOfX;
+        int hits = 0;
+        for (; i < end; i += STRIDE) {
+            if (Math.abs((cur[i] & 0xFF) - (prev[i] & 0xFF)) > THRESHOLD) {
+                cells[cellBase + colOfX[i - rowStart]]++;
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return true if a score known to lie in <code>[count, count + unscanned]</code> is
+     *         on a certain side of both thresholds (-1 = no threshold).
+     */
+    private static boolean isDecided(int count, int unscanned, int threshold, int secondThreshold) {
+        return (count > threshold || count + unscanned <= threshold)
+                && (count > secondThreshold || count + unscanned <= secondThreshold);
+    }
+
+    /**
+     * Scores against the running background and blends the frame into it:
+     * <code>bg += (pixel - bg) * rate</code>, all in integer fixed point and without
+     * allocating once the model exists. Sample <code>i</code> maps to <code>bg[i / STRIDE]</code>.
+     */
+    private int getBackgroundScore(byte[] currentFrame, int width, int height, MotionMask.Compiled spans, int[] cells) {
+        int limit = width * height;
+        int modelSize = (limit + STRIDE - 1) / STRIDE;
+        int[] bg = background;
+        if (bg == null || bg.length != modelSize) {
+            bg = new int[modelSize];
+            for (int i = 0, k = 0; i < limit; i += STRIDE, k++) {
+                bg[k] = (currentFrame[i] & 0xFF) << FP_SHIFT;
+            }
+            background = bg;
+            return 0;
+        }
+
+        int[] colOfX = cellColOfX;
+        int[] spanRow = spans.rowStart;
+        int[] spanFrom = spans.spanFrom;
+        int[] spanTo = spans.spanTo;
+        int rate = learningRate;
+        int diffCount = 0;
+        long samples = 0;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            int cellBase = cellBaseOfY[y];
+            for (int s = spanRow[y]; s < spanRow[y + 1]; s++) {
+                int spanEnd = rowStart + spanTo[s];
+                int i = firstSample(rowStart + spanFrom[s]);
+                samples += countSamples(i, spanEnd);
+                for (int k = i / STRIDE; i < spanEnd; i += STRIDE, k++) {
+                    int pixel = (currentFrame[i] & 0xFF) << FP_SHIFT;
+                    int delta = pixel - bg[k];
+
+                    if (Math.abs(delta) > (THRESHOLD << FP_SHIFT)) {
+                        cells[cellBase + colOfX[i - rowStart]]++;
+                        diffCount++;
+                    }
+                    bg[k] += (delta * rate) >> FP_SHIFT;
+                }
+            }
+        }
+        samplesScanned += samples;
 
         return diffCount;
     }
@@ -0,0 +1,88 @@
+package com.elojodelabuelo;
+
+/**
+ * Coarse spatial motion map filled by {@link MotionDetector#detect}.
+ * <p>
+ * The frame is split into <code>cols x rows</code> cells and each cell holds the number
+ * of sampled pixels that changed, so later stages (ROI cropping, masks, heatmaps) can tell
+ * a flickering corner from a subject crossing the frame. The object is meant to be reused
+ * every frame: the detector overwrites it in place and never allocates.
+ * </p>
+ */
+public class MotionGrid {
+
+    public static final int DEFAULT_COLS = 16;
+    public static final int DEFAULT_ROWS = 12;
+
+    public final int cols;
+    public final int rows;
+    /** Changed-sample count per cell, row-major (<code>row * cols + col</code>). */
+    public final int[] cells;
+    /** Sum of all cells (the motion score). */
+    public int total;
+
+    public MotionGrid() {
+        this(DEFAULT_COLS, DEFAULT_ROWS);
+    }
+
+    public MotionGrid(int cols, int rows) {
+        this.cols = cols;
+        this.rows = rows;
+        this.cells = new int[cols * rows];
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(cells, 0);
+        total = 0;
+    }
+
+    public int get(int col, int row) {
+        return cells[row * cols + col];
+    }
+
+    /** @return number of cells with at least <code>minCount</code> changed samples. */
+    public int countActiveCells(int minCount) {
+        int active = 0;
+        for (int c : cells) {
+            if (c >= minCount)
+                active++;
+        }
+        return active;
+    }
+
+    /**
+     * @return a copy of this sensor-orientation grid as seen on screen, for a camera output
+     *         rotated and flipped as {@link NV21Transform} does (columns and rows swap at
+     *         90/270 degrees).
+     */
+    public MotionGrid oriented(int rotation, int flip) {
+        boolean swap = rotation == 90 || rotation == 270;
+        MotionGrid view = swap ? new MotionGrid(rows, cols) : new MotionGrid(cols, rows);
+        for (int r = 0; r < view.rows; r++) {
+            for (int c = 0; c < view.cols; c++) {
+                int[] src = NV21Transform.sourceOf(c, r, rotation, flip, cols, rows);
+                view.cells[r * view.cols + c] = cells[src[1] * cols + src[0]];
+            }
+        }
+        view.total = total;
+        return view;
+    }
+
+    public void copyFrom(MotionGrid other) {
+        System.arraycopy(other.cells, 0, cells, 0, cells.length);
+        total = other.total;
+    }
+
+    /** JSON form for the dashboard: <code>{"cols":16, "rows":12, "total":N, "cells":[...]}</code>. */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(32 + cells.length * 4);
+        json.append("{\"cols\":").append(cols).append(", \"rows\":").append(rows)
+                .append(", \"total\":").append(total).append(", \"cells\":[");
+        for (int i = 0; i < cells.length; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append(cells[i]);
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,207 @@
+package com.elojodelabuelo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ignore zones for the motion detector (trees, a TV, a window onto the street...).
+ * <p>
+ * Zones are rectangles in percent of the frame, so they survive resolution changes, and
+ * are stored as <code>"x,y,w,h;x,y,w,h"</code> in the <code>SentinelPrefs</code>
+ * preferences. Before use they are compiled for a given frame size into <b>row spans</b>:
+ * for every row, the list of <code>[from, to)</code> column ranges that remain visible.
+ * The detector only walks those spans, so masked pixels cost nothing at all instead of
+ * being scored and thrown away.
+ * </p>
+ * Instances are immutable; replace the whole mask to change it.
+ */
+public class MotionMask {
+
+    /** A mask with no zones: every row is a single full-width span. */
+    public static final MotionMask NONE = new MotionMask(new int[0]);
+
+    private final int[] rects; // x, y, w, h in percent, 4 ints per zone
+
+    // Compiled form for the last frame size requested (frames rarely change size)
+    private Compiled compiled;
+
+    /**
+     * Visible row spans for one frame size. Row <code>y</code> owns spans
+     * <code>rowStart[y] .. rowStart[y + 1] - 1</code>; span <code>s</code> covers columns
+     * <code>spanFrom[s] &lt;= x &lt; spanTo[s]</code>.
+     */
+    public static class Compiled {
+        public final int width;
+        public final int height;
+        public final int[] rowStart;
+        public final int[] spanFrom;
+        public final int[] spanTo;
+
+        Compiled(int width, int height, int[] rowStart, int[] spanFrom, int[] spanTo) {
+            this.width = width;
+            this.height = height;
+            this.rowStart = rowStart;
+            this.spanFrom = spanFrom;
+            this.spanTo = spanTo;
+        }
+    }
+
+    private MotionMask(int[] rects) {
+        this.rects = rects;
+    }
+
+    /**
+     * Parses <code>"x,y,w,h;x,y,w,h"</code> (percent). Values are clamped to the frame;
+     * malformed or empty zones are skipped. An empty string yields {@link #NONE}.
+     */
+    public static MotionMask parse(String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return NONE;
+        List<int[]> zones = new ArrayList<int[]>();
+        for (String zone : spec.split(";")) {
+            String[] parts = zone.split(",");
+            if (parts.length != 4)
+                continue;
+            try {
+                int x = clamp(Integer.parseInt(parts[0].trim()));
+                int y = clamp(Integer.parseInt(parts[1].trim()));
+                int w = Math.min(clamp(Integer.parseInt(parts[2].trim())), 100 - x);
+                int h = Math.min(clamp(Integer.parseInt(parts[3].trim())), 100 - y);
+                if (w > 0 && h > 0)
+                    zones.add(new int[] { x, y, w, h });
+            } catch (NumberFormatException e) {
+                // Skip malformed zone
+            }
+        }
+        if (zones.isEmpty())
+            return NONE;
+        int[] rects = new int[zones.size() * 4];
+        for (int i = 0; i < zones.size(); i++) {
+            System.arraycopy(zones.get(i), 0, rects, i * 4, 4);
+        }
+        return new MotionMask(rects);
+    }
+
+    private static int clamp(int percent) {
+        return Math.max(0, Math.min(100, percent));
+    }
+
+    public boolean isEmpty() {
+        return rects.length == 0;
+    }
+
+    public int getZoneCount() {
+        return rects.length / 4;
+    }
+
+    /** @return zone <code>i</code> as <code>{x, y, w, h}</code> in percent. */
+    public int[] getZone(int i) {
+        return new int[] { rects[4 * i], rects[4 * i + 1], rects[4 * i + 2], rects[4 * i + 3] };
+    }
+
+    /**
+     * Maps zones drawn on the displayed picture onto raw sensor frames, for a camera whose
+     * output is rotated and flipped as {@link NV21Transform} does.
+     *
+     * @param rotation Clockwise degrees applied to sensor frames for display.
+     * @param flip {@link NV21Transform} flip bitmask applied after rotation.
+     */
+    public MotionMask toSensor(int rotation, int flip) {
+        if (isEmpty() || (rotation == 0 && flip == NV21Transform.FLIP_NONE))
+            return this;
+        int[] mapped = new int[rects.length];
+        for (int i = 0; i < rects.length; i += 4) {
+            // Percent cells of the two opposite corners, mapped like pixels of a 100x100 frame
+            int[] a = NV21Transform.sourceOf(rects[i], rects[i + 1], rotation, flip, 100, 100);
+            int[] b = NV21Transform.sourceOf(rects[i] + rects[i + 2] - 1, rects[i + 1] + rects[i + 3] - 1,
+                    rotation, flip, 100, 100);
+            mapped[i] = Math.min(a[0], b[0]);
+            mapped[i + 1] = Math.min(a[1], b[1]);
+            mapped[i + 2] = Math.abs(a[0] - b[0]) + 1;
+            mapped[i + 3] = Math.abs(a[1] - b[1]) + 1;
+        }
+        return new MotionMask(mapped);
+    }
+
+    /** @return the preference form, <code>"x,y,w,h;..."</code>. */
+    public String toSpec() {
+        StringBuilder spec = new StringBuilder();
+        for (int i = 0; i < rects.length; i += 4) {
+            if (i > 0)
+                spec.append(';');
+            spec.append(rects[i]).append(',').append(rects[i + 1]).append(',')
+                    .append(rects[i + 2]).append(',').append(rects[i + 3]);
+        }
+        return spec.toString();
+    }
+
+    /** @return <code>{"rects":[[x,y,w,h],...]}</code> (percent). */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"rects\":[");
+        for (int i = 0; i < rects.length; i += 4) {
+            if (i > 0)
+                json.append(',');
+            json.append('[').append(rects[i]).append(',').append(rects[i + 1]).append(',')
+                    .append(rects[i + 2]).append(',').append(rects[i + 3]).append(']');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return visible spans for a frame size, compiled once and reused while the size
+     *         stays the same.
+     */
+    public Compiled compile(int width, int height) {
+        Compiled c = compiled;
+        if (c != null && c.width == width && c.height == height)
+            return c;
+
+        // Zones in pixels (start inclusive, end exclusive)
+        int zones = rects.length / 4;
+        int[] zx0 = new int[zones];
+        int[] zx1 = new int[zones];
+        int[] zy0 = new int[zones];
+        int[] zy1 = new int[zones];
+        for (int z = 0; z < zones; z++) {
+            zx0[z] = rects[4 * z] * width / 100;
+            zy0[z] = rects[4 * z + 1] * height / 100;
+            zx1[z] = (rects[4 * z] + rects[4 * z + 2]) * width / 100;
+            zy1[z] = (rects[4 * z + 1] + rects[4 * z + 3]) * height / 100;
+        }
+
+        int[] rowStart = new int[height + 1];
+        int[] from = new int[height * (zones + 1)];
+        int[] to = new int[height * (zones + 1)];
+        boolean[] masked = new boolean[width];
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            rowStart[y] = count;
+            java.util.Arrays.fill(masked, false);
+            for (int z = 0; z < zones; z++) {
+                if (y >= zy0[z] && y < zy1[z]) {
+                    for (int x = zx0[z]; x < zx1[z]; x++)
+                        masked[x] = true;
+                }
+            }
+            int x = 0;
+            while (x < width) {
+                while (x < width && masked[x])
+                    x++;
+                if (x >= width)
+                    break;
+                int start = x;
+                while (x < width && !masked[x])
+                    x++;
+                from[count] = start;
+                to[count] = x;
+                count++;
+            }
+        }
+        rowStart[height] = count;
+
+        c = new Compiled(width, height, rowStart,
+                java.util.Arrays.copyOf(from, count), java.util.Arrays.copyOf(to, count));
+        compiled = c;
+        return c;
+    }
+}
@@ -0,0 +1,251 @@
+package com.elojodelabuelo;
+
+/**
+ * Crop, rotation (0/90/180/270 clockwise) and mirroring of NV21 frames in software.
+ * <p>
+ * The Galaxy S i9000 driver ignores hardware rotation for preview callbacks, so every
+ * orientation is produced here, straight into a caller-provided buffer (usually one from
+ * {@link FrameBufferPool}), without Bitmaps or allocations.
+ * </p>
+ * <p>
+ * <b>Order:</b> the crop rectangle is taken in sensor coordinates, the result is rotated
+ * clockwise, then flipped as seen on screen ({@link #FLIP_HORIZONTAL} mirrors the picture
+ * the viewer gets, whatever the rotation).
+ * </p>
+ * <p>
+ * <b>Algorithm:</b> every output pixel maps to a source index through an affine step,
+ * <code>src = origin + ox * stepX + oy * stepY</code>, computed once per instance. Both
+ * planes use the same code: the Y plane in bytes, the interleaved VU plane in byte pairs
+ * at half resolution.
+ * <ul>
+ *     <li>0/180 degrees: output rows are source rows, copied with
+ *     <code>System.arraycopy</code> (or walked backwards when mirrored).</li>
+ *     <li>90/270 degrees: output rows are source columns. The copy is done in
+ *     {@link #TILE}x{@link #TILE} blocks so the source lines touched by a block stay in the
+ *     cache instead of striding over the whole frame per output row.</li>
+ * </ul>
+ * </p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class NV21Transform {
+
+    public static final int FLIP_NONE = 0;
+    public static final int FLIP_HORIZONTAL = 1; // Mirror left/right
+    public static final int FLIP_VERTICAL = 2; // Mirror top/bottom
+
+    /** Block edge for 90/270 degree copies, in output pixels. */
+    private static final int TILE = 32;
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int rotation;
+    private final int flip;
+    private final int outWidth;
+    private final int outHeight;
+    private final boolean identity;
+
+    // Affine source walk for each plane: index = origin + ox * stepX + oy * stepY
+    private final int lumaOrigin;
+    private final int lumaStepX;
+    private final int lumaStepY;
+    private final int chromaOrigin;
+    private final int chromaStepX;
+    private final int chromaStepY;
+
+    /** Whole-frame transform (no crop). */
+    public NV21Transform(int srcWidth, int srcHeight, int rotation, int flip) {
+        this(srcWidth, srcHeight, rotation, flip, 0, 0, srcWidth, srcHeight);
+    }
+
+    /**
+     * @param rotation Clockwise degrees: 0, 90, 180 or 270.
+     * @param flip Bitmask of {@link #FLIP_HORIZONTAL} and {@link #FLIP_VERTICAL}, applied
+     *             to the rotated picture.
+     * @param cropX Crop rectangle in sensor pixels. All four values must be even (NV21
+     *              chroma is subsampled 2x2) and the rectangle must lie inside the frame.
+     */
+    public NV21Transform(int srcWidth, int srcHeight, int rotation, int flip,
+                         int cropX, int cropY, int cropWidth, int cropHeight) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270)
+            throw new IllegalArgumentException("Rotation must be 0, 90, 180 or 270: " + rotation);
+        if (((srcWidth | srcHeight | cropX | cropY | cropWidth | cropHeight) & 1) != 0)
+            throw new IllegalArgumentException("NV21 sizes and crop must be even");
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > srcWidth || cropY + cropHeight > srcHeight)
+            throw new IllegalArgumentException("Crop outside the frame");
+
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.rotation = rotation;
+        this.flip = flip & (FLIP_HORIZONTAL | FLIP_VERTICAL);
+        boolean swap = rotation == 90 || rotation == 270;
+        this.outWidth = swap ? cropHeight : cropWidth;
+        this.outHeight = swap ? cropWidth : cropHeight;
+        this.identity = rotation == 0 && this.flip == FLIP_NONE
+                && cropWidth == srcWidth && cropHeight == srcHeight;
+
+        // Luma: 1 byte per element, full resolution
+        int[] walk = walk(rotation, this.flip, cropWidth, cropHeight);
+        lumaOrigin = (cropY + walk[1]) * srcWidth + (cropX + walk[0]);
+        lumaStepX = walk[2] + walk[3] * srcWidth;
+        lumaStepY = walk[4] + walk[5] * srcWidth;
+
+        // Chroma: VU pairs (2 bytes per element), half resolution, same row stride in bytes
+        walk = walk(rotation, this.flip, cropWidth / 2, cropHeight / 2);
+        chromaOrigin = srcWidth * srcHeight + (cropY / 2 + walk[1]) * srcWidth + (cropX / 2 + walk[0]) * 2;
+        chromaStepX = walk[2] * 2 + walk[3] * srcWidth;
+        chromaStepY = walk[4] * 2 + walk[5] * srcWidth;
+    }
+
+    /**
+     * Source position of output pixel (ox, oy), as crop-local coordinates
+     * <code>sx = x0 + ox * dxx + oy * dxy</code>, <code>sy = y0 + ox * dyx + oy * dyy</code>.
+     *
+     * @return <code>{x0, y0, dxx, dyx, dxy, dyy}</code>.
+     */
+    private static int[] walk(int rotation, int flip, int w, int h) {
+        int[] p00 = sourceOf(0, 0, rotation, flip, w, h);
+        int[] p10 = sourceOf(1, 0, rotation, flip, w, h);
+        int[] p01 = sourceOf(0, 1, rotation, flip, w, h);
+        return new int[] { p00[0], p00[1], p10[0] - p00[0], p10[1] - p00[1], p01[0] - p00[0], p01[1] - p00[1] };
+    }
+
+    /**
+     * Inverse mapping of one output pixel: undo the flip, then the rotation. Also used to
+     * map grid cells and mask zones between screen and sensor orientation.
+     *
+     * @param w Source width (before rotation).
+     * @param h Source height.
+     * @return <code>{sx, sy}</code>.
+     */
+    static int[] sourceOf(int ox, int oy, int rotation, int flip, int w, int h) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int outW = swap ? h : w;
+        int outH = swap ? w : h;
+        if ((flip & FLIP_HORIZONTAL) != 0)
+            ox = outW - 1 - ox;
+        if ((flip & FLIP_VERTICAL) != 0)
+            oy = outH - 1 - oy;
+        switch (rotation) {
+            case 90:
+                return new int[] { oy, h - 1 - ox };
+            case 180:
+                return new int[] { w - 1 - ox, h - 1 - oy };
+            case 270:
+                return new int[] { w - 1 - oy, ox };
+            default:
+                return new int[] { ox, oy };
+        }
+    }
+
+    public int getOutputWidth() {
+        return outWidth;
+    }
+
+    public int getOutputHeight() {
+        return outHeight;
+    }
+
+    /** @return bytes of NV21 output ({@link #apply} needs at least this much room). */
+    public int getOutputSize() {
+        return outWidth * outHeight * 3 / 2;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public int getFlip() {
+        return flip;
+    }
+
+    /** @return true if {@link #apply} would be a plain copy (callers can skip it). */
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    /**
+     * Transforms one frame.
+     *
+     * @param src NV21 frame of the source size given at construction (not modified).
+     * @param dst Output buffer of at least {@link #getOutputSize()} bytes; must not be
+     *            <code>src</code>.
+     */
+    public void apply(byte[] src, byte[] dst) {
+        if (src.length < srcWidth * srcHeight * 3 / 2 || dst.length < getOutputSize())
+            throw new IllegalArgumentException("Buffer too small for " + srcWidth + "x" + srcHeight);
+        if (src == dst)
+            throw new IllegalArgumentException("In-place transform not supported");
+
+        copyPlane(src, dst, lumaOrigin, lumaStepX, lumaStepY, 0, outWidth, outHeight, 1);
+        copyPlane(src, dst, chromaOrigin, chromaStepX, chromaStepY, outWidth * outHeight,
+                outWidth / 2, outHeight / 2, 2);
+    }
+
+    /**
+     * Writes <code>bytes</code> bytes to <code>dst</code> walking <code>src</code> backwards
+     * from element <code>from</code>, keeping the byte order inside each element.
+     */
+    private static void reverseCopy(byte[] src, int from, byte[] dst, int d, int bytes, int size) {
+        int end = from - bytes;
+        if (size == 1) {
+            for (int i = from; i > end; i--) {
+                dst[d++] = src[i];
+            }
+        } else {
+            for (int i = from; i > end; i -= 2) {
+                dst[d++] = src[i]; // V
+                dst[d++] = src[i + 1]; // U
+            }
+        }
+    }
+
+    /**
+     * Copies one plane of <code>cols x rows</code> elements of <code>size</code> bytes,
+     * output row-major from <code>dstOffset</code>.
+     */
+    private static void copyPlane(byte[] src, byte[] dst, int origin, int stepX, int stepY,
+                                  int dstOffset, int cols, int rows, int size) {
+        int rowBytes = cols * size;
+        if (stepX == size) {
+            // Rows stay rows, same direction
+            for (int oy = 0; oy < rows; oy++) {
+                System.arraycopy(src, origin + oy * stepY, dst, dstOffset + oy * rowBytes, rowBytes);
+            }
+        } else if (stepX == -size) {
+            if (stepY == -rowBytes) {
+                // Whole plane reversed (180 degrees, no crop): one contiguous pass
+                reverseCopy(src, origin, dst, dstOffset, rowBytes * rows, size);
+            } else {
+                // Rows stay rows, mirrored
+                for (int oy = 0; oy < rows; oy++) {
+                    reverseCopy(src, origin + oy * stepY, dst, dstOffset + oy * rowBytes, rowBytes, size);
+                }
+            }
+        } else {
+            // Rows become columns: blocked transpose
+            for (int ty = 0; ty < rows; ty += TILE) {
+                int tyEnd = Math.min(ty + TILE, rows);
+                for (int tx = 0; tx < cols; tx += TILE) {
+                    int txEnd = Math.min(tx + TILE, cols);
+                    for (int oy = ty; oy < tyEnd; oy++) {
+                        int s = origin + oy * stepY + tx * stepX;
+                        int d = dstOffset + oy * rowBytes + tx * size;
+                        if (size == 1) {
+                            for (int ox = tx; ox < txEnd; ox++) {
+                                dst[d++] = src[s];
+                                s += stepX;
+                            }
+                        } else {
+                            for (int ox = tx; ox < txEnd; ox++) {
+                                dst[d++] = src[s];
+                                dst[d++] = src[s + 1];
+                                s += stepX;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -2,38 +2,80 @@ package com.elojodelabuelo;
 
 import android.content.Context;
 import android.os.Environment;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A robust embedded Web Server/NVR.
  * Serves a modern mobile dashboard, handles MJPEG streaming, and provides video
  * playback.
+ * <p>
+ * <b>Threading Model:</b> A single selector thread owns every socket (accept, request
+ * parsing and all writes, including long-lived <code>/stream</code> viewers and
+ * <code>/wait_status</code> long-polls). Route handlers that may touch the disk run on a
+ * small fixed worker pool and only queue their response bytes (file bodies are queued
+ * by reference and sent zero-copy). The number of threads therefore does not depend
+ * on the number of connected clients.
+ * </p>
  */
 public class NanoHttpServer {
 
-    private ServerSocket serverSocket;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
     private Thread serverThread;
-    private boolean isRunning = false;
+    private ExecutorService workers;
+    private volatile boolean isRunning = false;
     private Context context;
-    private final Set<OutputStream> liveStreamClients = Collections.synchronizedSet(new HashSet<OutputStream>());
+    /**
+     * Live stream viewers. Copy-on-write so {@link #broadcast(byte[])} can iterate without
+     * taking a lock; the list only changes when a viewer connects or disconnects.
+     */
+    private final CopyOnWriteArrayList<StreamClient> liveStreamClients = new CopyOnWriteArrayList<StreamClient>();
+    /** Connections that have new outbound data; drained by the selector thread. */
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+    /** Parked <code>/wait_status</code> requests; answered by the selector thread. */
+    private final ConcurrentLinkedQueue<Connection> statusWaiters = new ConcurrentLinkedQueue<Connection>();
     private static final int PORT = 8080;
+    private static final int WORKER_THREADS = 2;
+    private static final int MAX_REQUEST_HEADER = 8192;
+    private static final long WAIT_STATUS_TIMEOUT = 30000; // 30s heartbeat
     private static final String BOUNDARY = "ElOjoDelAbueloBoundary";
+    private static final String RANGES_BOUNDARY = "ElOjoDelAbueloRanges";
+    // Multipart stream framing, prebuilt so per-frame headers cost no allocation
+    private static final byte[] PART_HEADER_PREFIX = ("--" + BOUNDARY + "\r\n" +
+            "Content-Type: image/jpeg\r\n" +
+            "Content-Length: ").getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final int MAX_RANGES = 16;
     private static final File STORAGE_DIR = new File(Environment.getExternalStorageDirectory(), "ElOjoDelAbuelo");
 
     private static String lastError = "None";
@@ -53,97 +95,725 @@ public class NanoHttpServer {
         if (isRunning)
             return;
         isRunning = true;
+        workers = Executors.newFixedThreadPool(WORKER_THREADS, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "HttpWorker-" + (++count));
+            }
+        });
         serverThread = new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    serverSocket = new ServerSocket(PORT);
-                    while (isRunning) {
-                        try {
-                            Socket client = serverSocket.accept();
-                            new Thread(new ClientHandler(client)).start();
-                        } catch (IOException e) {
-                            if (isRunning)
-                                e.printStackTrace();
-                        }
-                    }
+                    selector = Selector.open();
+                    serverChannel = ServerSocketChannel.open();
+                    serverChannel.socket().setReuseAddress(true);
+                    serverChannel.socket().bind(new InetSocketAddress(PORT));
+                    serverChannel.configureBlocking(false);
+                    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                    runSelectorLoop();
                 } catch (IOException e) {
                     e.printStackTrace();
+                } finally {
+                    closeAll();
                 }
             }
-        });
+        }, "HttpSelector");
         serverThread.start();
     }
 
     public void stop() {
         isRunning = false;
-        try {
-            if (serverSocket != null)
-                serverSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (selector != null)
+            selector.wakeup();
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    /**
+     * Wakes up parked <code>/wait_status</code> long-polls so they can answer with the new
+     * recording state. Called by {@link SentinelService} whenever the state flips.
+     */
+    public void notifyStatusChanged() {
+        Selector s = selector;
+        if (s != null && !statusWaiters.isEmpty())
+            s.wakeup();
+    }
+
+    /**
+     * Hands a JPEG frame to every live stream viewer.
+     * <p>
+     * Runs on the <code>FrameProcessor</code> thread, so it never touches a socket: each
+     * viewer has a one-slot "latest frame wins" mailbox drained by the selector thread
+     * whenever that viewer's socket is writable. A slow viewer simply skips frames
+     * (counted in its dropped counter) instead of stalling encoding, recording or the
+     * other viewers.
+     * </p>
+     *
+     * @param jpeg Encoded frame, shared: each viewer retains it until written or replaced,
+     *             the caller keeps its own reference.
+     */
+    public void broadcast(JpegBufferPool.JpegBuffer jpeg) {
+        if (jpeg == null || liveStreamClients.isEmpty())
+            return;
+
+        boolean wake = false;
+        for (StreamClient client : liveStreamClients) {
+            if (client.offer(jpeg)) {
+                pendingWrites.add(client.connection);
+                wake = true;
+            }
         }
-        synchronized (liveStreamClients) {
-            for (OutputStream os : liveStreamClients) {
+        Selector s = selector;
+        if (wake && s != null)
+            s.wakeup();
+    }
+
+    public boolean hasStreamClients() {
+        return !liveStreamClients.isEmpty();
+    }
+
+    /**
+     * Per-viewer delivery counters as a JSON array, e.g.
+     * <code>[{"client":"192.168.1.20", "sent":120, "dropped":3}]</code>.
+     */
+    public String getStreamStatsJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (StreamClient client : liveStreamClients) {
+            if (json.length() > 1)
+                json.append(", ");
+            json.append("{\"client\":\"").append(client.remoteAddress)
+                    .append("\", \"sent\":").append(client.sentFrames)
+                    .append(", \"dropped\":").append(client.droppedFrames).append("}");
+        }
+        return json.append("]").toString();
+    }
+
+    // --- Selector Thread ---
+
+    private void runSelectorLoop() throws IOException {
+        while (isRunning) {
+            selector.select(1000);
+            if (!isRunning)
+                break;
+
+            // 1. Arm OP_WRITE for connections that queued data from other threads
+            Connection pending;
+            while ((pending = pendingWrites.poll()) != null) {
+                pending.enableWrite();
+            }
+
+            // 2. Socket events
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid())
+                    continue;
                 try {
-                    os.close();
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable())
+                        conn.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        conn.onWritable();
+                } catch (IOException e) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Connection)
+                        ((Connection) attachment).close();
                 } catch (Exception e) {
+                    e.printStackTrace();
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Connection)
+                        ((Connection) attachment).close();
                 }
             }
-            liveStreamClients.clear();
+
+            // 3. Long-polls whose state changed or whose heartbeat expired
+            answerStatusWaiters(false);
         }
     }
 
-    public void broadcast(byte[] jpegData) {
-        if (jpegData == null || liveStreamClients.isEmpty())
-            return;
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
 
-        synchronized (liveStreamClients) {
-            Iterator<OutputStream> it = liveStreamClients.iterator();
-            while (it.hasNext()) {
-                OutputStream os = it.next();
+    private void answerStatusWaiters(boolean all) {
+        if (statusWaiters.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = statusWaiters.iterator();
+        while (it.hasNext()) {
+            Connection conn = it.next();
+            if (all || SentinelService.isRecordingPublic != conn.waitState
+                    || now - conn.waitStart > WAIT_STATUS_TIMEOUT) {
+                it.remove();
                 try {
-                    os.write(("--" + BOUNDARY + "\r\n").getBytes());
-                    os.write("Content-Type: image/jpeg\r\n".getBytes());
-                    os.write(("Content-Length: " + jpegData.length + "\r\n\r\n").getBytes());
-                    os.write(jpegData);
-                    os.write("\r\n".getBytes());
-                    os.flush();
+                    writeWaitStatusResponse(conn.out);
+                    conn.finish();
                 } catch (IOException e) {
-                    it.remove();
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private void writeWaitStatusResponse(OutputStream os) throws IOException {
+        String json = "{\"recording\":" + SentinelService.isRecordingPublic + "}";
+        os.write("HTTP/1.1 200 OK\r\n".getBytes());
+        os.write("Content-Type: application/json\r\n".getBytes());
+        os.write("Cache-Control: no-cache\r\n".getBytes());
+        os.write(("Content-Length: " + json.length() + "\r\n").getBytes());
+        os.write("\r\n".getBytes());
+        os.write(json.getBytes());
+    }
+
+    private void closeAll() {
+        for (StreamClient client : liveStreamClients) {
+            client.connection.close();
+        }
+        liveStreamClients.clear();
+        statusWaiters.clear();
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection)
+                    ((Connection) attachment).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One client socket. Owned by the selector thread; worker threads only append to
+     * {@link #outbound} (through {@link #out}) and then call {@link #requestWrite()}.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_REQUEST_HEADER);
+        private final ArrayDeque<Object> outbound = new ArrayDeque<Object>(); // ByteBuffer or FileSegment, guarded by this
+        final ResponseStream out = new ResponseStream(this);
+        private volatile boolean responseComplete = false;
+        private StreamClient streamClient;
+        // Long-poll state (see serveWaitStatus)
+        boolean waitState;
+        long waitStart;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() throws IOException {
+            if (requestBuffer == null) {
+                // Request already parsed: only watch for the peer closing the socket
+                ByteBuffer discard = ByteBuffer.allocate(256);
+                if (channel.read(discard) < 0)
+                    close();
+                return;
+            }
+            int n = channel.read(requestBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            int headerEnd = findHeaderEnd(requestBuffer.array(), requestBuffer.position());
+            if (headerEnd < 0) {
+                if (!requestBuffer.hasRemaining()) {
+                    requestBuffer = null;
+                    out.write("HTTP/1.1 431 Request Header Fields Too Large\r\n\r\n".getBytes());
+                    finish();
+                }
+                return;
+            }
+            String head = new String(requestBuffer.array(), 0, headerEnd, "ISO-8859-1");
+            requestBuffer = null;
+            workers.execute(new RequestHandler(this, head));
+        }
+
+        void onWritable() throws IOException {
+            while (true) {
+                // Read before draining: once set, finish() has queued everything
+                boolean complete = responseComplete;
+                if (!flushOutbound())
+                    return; // Socket buffer full, wait for the next OP_WRITE
+
+                if (streamClient != null) {
+                    streamClient.onFrameWritten();
+                    JpegBufferPool.JpegBuffer frame = streamClient.takeFrame();
+                    if (frame != null) {
+                        queueStreamFrame(frame);
+                        continue;
+                    }
+                } else if (complete) {
+                    close();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+        }
+
+        private boolean flushOutbound() throws IOException {
+            while (true) {
+                Object head;
+                synchronized (this) {
+                    head = outbound.peek();
+                }
+                if (head == null)
+                    return true;
+                if (head instanceof ByteBuffer) {
+                    ByteBuffer buf = (ByteBuffer) head;
+                    channel.write(buf);
+                    if (buf.hasRemaining())
+                        return false;
+                } else {
+                    FileSegment segment = (FileSegment) head;
+                    if (!segment.writeTo(channel))
+                        return false;
+                    segment.close();
                 }
+                synchronized (this) {
+                    outbound.poll();
+                }
+            }
+        }
+
+        /**
+         * Queues one multipart part. The header and trailer buffers belong to the viewer and
+         * are reused: the next part is only queued once this one is fully written.
+         */
+        private void queueStreamFrame(JpegBufferPool.JpegBuffer frame) {
+            ByteBuffer partHeader = streamClient.partHeader;
+            partHeader.clear();
+            partHeader.put(PART_HEADER_PREFIX);
+            putDecimal(partHeader, frame.getLength());
+            partHeader.put(CRLF).put(CRLF);
+            partHeader.flip();
+            streamClient.partTrailer.rewind();
+            synchronized (this) {
+                outbound.add(partHeader);
+                outbound.add(ByteBuffer.wrap(frame.getData(), 0, frame.getLength()));
+                outbound.add(streamClient.partTrailer);
+            }
+        }
+
+        void enableWrite() {
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        synchronized void enqueue(Object body) {
+            outbound.add(body);
+        }
+
+        /** Queues a file body (zero-copy). Any bytes already written to {@link #out} go first. */
+        void sendFile(File file, long length) throws IOException {
+            sendFile(file, 0, length);
+        }
+
+        void sendFile(File file, long offset, long length) throws IOException {
+            out.flush();
+            enqueue(new FileSegment(file, offset, length));
+        }
+
+        /** Schedules an OP_WRITE from a non-selector thread. */
+        void requestWrite() {
+            pendingWrites.add(this);
+            Selector s = selector;
+            if (s != null)
+                s.wakeup();
+        }
+
+        /**
+         * Marks the response as complete: the socket closes once everything is written. The
+         * last buffered bytes are queued before the flag is set, since the selector may
+         * already be draining <code>outbound</code> (after a <code>sendFile</code>) and would
+         * otherwise close on an empty queue before them.
+         */
+        void finish() throws IOException {
+            out.flush();
+            responseComplete = true;
+            requestWrite();
+        }
+
+        void close() {
+            if (streamClient != null) {
+                liveStreamClients.remove(streamClient);
+                streamClient.close();
+            }
+            statusWaiters.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            synchronized (this) {
+                for (Object body : outbound) {
+                    if (body instanceof FileSegment)
+                        ((FileSegment) body).close();
+                }
+                outbound.clear();
+            }
+        }
+    }
+
+    /** Writes <code>value</code> (non-negative) as ASCII digits without building a String. */
+    private static void putDecimal(ByteBuffer buf, int value) {
+        int start = buf.position();
+        do {
+            buf.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte tmp = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, tmp);
+        }
+    }
+
+    private static int findHeaderEnd(byte[] buf, int len) {
+        for (int i = 3; i < len; i++) {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a <code>Range: bytes=...</code> header against a file of the given length.
+     *
+     * @return null if the header should be ignored (malformed or too many ranges), an
+     *         empty array if no range is satisfiable, otherwise inclusive
+     *         <code>[start0, end0, start1, end1, ...]</code> pairs.
+     */
+    private static long[] parseRanges(String header, long length) {
+        if (!header.startsWith("bytes="))
+            return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+        long[] ranges = new long[specs.length * 2];
+        int count = 0;
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0)
+                    return null;
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0)
+                        continue;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = length - 1;
+                    if (!last.isEmpty()) {
+                        long lastByte = Long.parseLong(last);
+                        if (lastByte < start)
+                            return null; // Syntactically invalid
+                        end = Math.min(lastByte, end);
+                    }
+                }
+                if (start >= length || end < start)
+                    continue; // Unsatisfiable, try the others
+                ranges[count++] = start;
+                ranges[count++] = end;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /** Parses <code>?a=1&amp;b=2</code> into a map (no URL decoding beyond '+' and %XX). */
+    private static Map<String, String> parseQuery(String uri) {
+        Map<String, String> params = new HashMap<String, String>();
+        int q = uri.indexOf('?');
+        if (q < 0)
+            return params;
+        for (String pair : uri.substring(q + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            try {
+                value = URLDecoder.decode(value, "UTF-8");
+            } catch (Exception e) {
+                // Keep raw value
             }
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*"))
+            return true;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static String formatHttpDate(long millis) {
+        return httpDateFormat().format(new Date(millis));
+    }
+
+    /** @return epoch millis, or -1 if the header is absent or not an HTTP date. */
+    private static long parseHttpDate(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return httpDateFormat().parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
         }
     }
 
-    private class ClientHandler implements Runnable {
-        private final Socket socket;
+    /**
+     * Collects response bytes written by a handler and hands them to the connection's
+     * outbound queue on {@link #flush()}.
+     */
+    private static class ResponseStream extends OutputStream {
+        private final Connection connection;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        ResponseStream(Connection connection) {
+            this.connection = connection;
         }
 
         @Override
-        public void run() {
-            InputStream is = null;
-            OutputStream os = null;
+        public synchronized void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (pending.size() == 0)
+                return;
+            connection.enqueue(ByteBuffer.wrap(pending.toByteArray()));
+            pending.reset();
+            connection.requestWrite();
+        }
+    }
+
+    /**
+     * A file body sent straight from the page cache to the socket.
+     * <p>
+     * <b>Zero-Copy:</b> {@link FileChannel#transferTo} lets the kernel move the bytes
+     * (sendfile), so a multi-megabyte recording download no longer costs a read/write
+     * copy through a Java heap buffer on the CPU the camera pipeline needs. If the
+     * platform refuses <code>transferTo</code> for this socket, the segment falls back to
+     * writing from a memory-mapped window of the file, which still avoids the heap copy.
+     * </p>
+     * The length is fixed when the headers are written, so a recording that is still
+     * growing never sends more bytes than its <code>Content-Length</code>.
+     * Package-private for <code>FileSegmentBenchmark</code>.
+     */
+    static class FileSegment {
+        private static final long MAP_WINDOW = 1024 * 1024;
+
+        private final FileInputStream in;
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+        private boolean useMapped = false;
+        private MappedByteBuffer window;
+
+        FileSegment(File source, long offset, long length) throws IOException {
+            this.in = new FileInputStream(source);
+            this.file = in.getChannel();
+            this.position = offset;
+            this.remaining = length;
+        }
+
+        /** @return true once the whole segment has been written. */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            while (remaining > 0) {
+                long n;
+                if (!useMapped) {
+                    try {
+                        n = file.transferTo(position, remaining, channel);
+                    } catch (IOException e) {
+                        if (!channel.isOpen())
+                            throw e;
+                        useMapped = true; // Retry through the mapped path; a dead socket fails there too
+                        continue;
+                    }
+                } else {
+                    if (window == null || !window.hasRemaining())
+                        window = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, remaining));
+                    n = channel.write(window);
+                }
+                if (n <= 0) {
+                    if (position >= file.size())
+                        throw new IOException("File truncated while sending");
+                    return false; // Socket buffer full
+                }
+                position += n;
+                remaining -= n;
+            }
+            return true;
+        }
+
+        void close() {
+            window = null;
             try {
-                is = socket.getInputStream();
-                os = socket.getOutputStream();
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
 
-                // 1. Read Request
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-                String line = reader.readLine();
-                if (line == null)
-                    return;
+    /**
+     * A connected <code>/stream</code> viewer.
+     * <p>
+     * <b>Latest Frame Wins:</b> {@link #offer} overwrites the single pending slot,
+     * so the processing thread pays O(1) per viewer and never blocks. The selector thread
+     * takes whatever frame is newest each time the previous one has been fully written.
+     * </p>
+     * The pending and in-flight frames are pooled JPEG buffers held by reference, released
+     * when written, replaced, or when the viewer disconnects.
+     */
+    private class StreamClient {
+        private final Connection connection;
+        private final String remoteAddress;
+        private JpegBufferPool.JpegBuffer pendingFrame; // Guarded by this
+        private boolean scheduled = false; // A write is queued or in flight, guarded by this
+        private boolean closed = false; // Guarded by this
+        private JpegBufferPool.JpegBuffer inFlightFrame; // Selector thread only
+        final ByteBuffer partHeader = ByteBuffer.allocate(PART_HEADER_PREFIX.length + 16); // Selector thread only
+        final ByteBuffer partTrailer = ByteBuffer.wrap(CRLF); // Selector thread only
+        private volatile long sentFrames = 0;
+        private volatile long droppedFrames = 0;
+
+        StreamClient(Connection connection) {
+            this.connection = connection;
+            this.remoteAddress = String.valueOf(connection.channel.socket().getInetAddress()).replace("/", "");
+        }
+
+        /** @return true if the selector needs to be told about this viewer. */
+        synchronized boolean offer(JpegBufferPool.JpegBuffer jpeg) {
+            if (closed)
+                return false;
+            jpeg.retain();
+            if (pendingFrame != null) {
+                droppedFrames++; // Previous frame was never sent, replaced by a newer one
+                pendingFrame.release();
+            }
+            pendingFrame = jpeg;
+            if (scheduled)
+                return false;
+            scheduled = true;
+            return true;
+        }
+
+        synchronized JpegBufferPool.JpegBuffer takeFrame() {
+            JpegBufferPool.JpegBuffer frame = pendingFrame;
+            pendingFrame = null;
+            inFlightFrame = frame;
+            if (frame == null)
+                scheduled = false;
+            return frame;
+        }
+
+        void onFrameWritten() {
+            if (inFlightFrame != null) {
+                inFlightFrame.release();
+                inFlightFrame = null;
+                sentFrames++;
+            }
+        }
 
-                StringTokenizer st = new StringTokenizer(line);
+        /** Viewer gone (selector thread): drop every frame reference, refuse new ones. */
+        synchronized void close() {
+            closed = true;
+            if (pendingFrame != null) {
+                pendingFrame.release();
+                pendingFrame = null;
+            }
+            if (inFlightFrame != null) {
+                inFlightFrame.release();
+                inFlightFrame = null;
+            }
+        }
+    }
+
+    // --- Request Handling (Worker Pool) ---
+
+    private class RequestHandler implements Runnable {
+        private final Connection connection;
+        private final String head;
+        private final Map<String, String> headers = new HashMap<String, String>(); // Lower-case names
+
+        RequestHandler(Connection connection, String head) {
+            this.connection = connection;
+            this.head = head;
+        }
+
+        @Override
+        public void run() {
+            OutputStream os = connection.out;
+            boolean parked = false;
+            try {
+                // 1. Parse Request
+                String[] lines = head.split("\r\n");
+                StringTokenizer st = new StringTokenizer(lines[0]);
                 String method = st.hasMoreTokens() ? st.nextToken() : "GET";
                 String uri = st.hasMoreTokens() ? st.nextToken() : "/";
+                for (int i = 1; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon > 0)
+                        headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                                lines[i].substring(colon + 1).trim());
+                }
 
                 // 2. Route Request
                 if (uri.equals("/stream")) {
-                    serveLiveStream(os); // Blocks thread while streaming
+                    serveLiveStream(os);
+                    parked = true; // Frames are written by the selector thread
                 } else if (uri.startsWith("/video_") || uri.startsWith("/preview_")) {
                     serveVideoFile(os, uri.substring(1)); // Remove leading slash
                 } else if (uri.startsWith("/thumbnails/")) {
@@ -154,23 +824,30 @@ public class NanoHttpServer {
                     serveSettings(os);
                 } else if (uri.startsWith("/api/save_settings")) {
                     serveSaveSettings(os, uri);
+                } else if (uri.startsWith("/api/mask")) {
+                    serveMask(os, uri);
+                } else if (uri.startsWith("/api/history")) {
+                    serveHistory(os, uri);
+                } else if (uri.startsWith("/api/metrics")) {
+                    serveMetrics(os, uri);
+                } else if (uri.equals("/api/motion_grid")) {
+                    serveMotionGrid(os);
+                } else if (uri.startsWith("/api/frame")) {
+                    serveFrame(os, uri);
                 } else if (uri.equals("/api/latest_video_meta")) {
                     serveLatestVideoMeta(os);
                 } else if (uri.startsWith("/wait_status")) {
-                    serveWaitStatus(os, uri);
+                    parked = serveWaitStatus(os, uri);
                 } else {
                     serveDashboard(os);
                 }
 
+                if (!parked)
+                    connection.finish();
+
             } catch (Exception e) {
                 e.printStackTrace();
-            } finally {
-                if (!liveStreamClients.contains(os)) {
-                    try {
-                        socket.close();
-                    } catch (Exception e) {
-                    }
-                }
+                connection.close();
             }
         }
 
@@ -180,16 +857,11 @@ public class NanoHttpServer {
             os.write("Connection: keep-alive\r\n".getBytes());
             os.write("\r\n".getBytes());
             os.flush();
-            liveStreamClients.add(os);
 
-            // Keep thread alive to prevent socket closure
-            try {
-                while (liveStreamClients.contains(os)) {
-                    Thread.sleep(1000);
-                }
-            } catch (InterruptedException e) {
-                // End
-            }
+            // From now on the selector thread pushes frames as they are broadcast
+            StreamClient client = new StreamClient(connection);
+            connection.streamClient = client;
+            liveStreamClients.add(client);
         }
 
         private void serveVideoFile(OutputStream os, String fileName) throws IOException {
@@ -200,53 +872,276 @@ public class NanoHttpServer {
             }
 
             // Simple MJPEG serving (as a download/stream)
-            os.write("HTTP/1.1 200 OK\r\n".getBytes());
-            os.write(("Content-Type: application/octet-stream\r\n").getBytes());
-            os.write(("Content-Length: " + file.length() + "\r\n").getBytes());
-            os.write("\r\n".getBytes());
+            serveFile(os, file, "application/octet-stream");
+        }
 
-            FileInputStream fis = new FileInputStream(file);
-            byte[] buf = new byte[8192];
-            int len;
-            while ((len = fis.read(buf)) > 0) {
-                os.write(buf, 0, len);
+        private void serveThumbnail(OutputStream os, String fileName) throws IOException {
+            File file = new File(STORAGE_DIR, fileName);
+            if (!file.exists()) {
+                send404(os);
+                return;
             }
-            fis.close();
-            os.flush();
+
+            serveFile(os, file, "image/jpeg");
         }
 
-        private void serveThumbnail(OutputStream os, String fileName) throws IOException {
+        /**
+         * Sends a stored file honouring conditional and range requests.
+         * <ul>
+         *     <li><code>If-None-Match</code> / <code>If-Modified-Since</code>: 304 when the
+         *     client's copy is current, so thumbnails are not re-downloaded on every
+         *     dashboard load.</li>
+         *     <li><code>Range</code> (optionally guarded by <code>If-Range</code>): 206 with a
+         *     single <code>Content-Range</code>, or <code>multipart/byteranges</code> for
+         *     several ranges, so downloads can resume and players can seek.</li>
+         * </ul>
+         * The ETag is derived from size and modification time, so a recording that is still
+         * growing gets a new one on every request.
+         */
+        private void serveFile(OutputStream os, File file, String contentType) throws IOException {
+            long length = file.length();
+            long lastModified = file.lastModified();
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            String validators = "ETag: " + etag + "\r\n" +
+                    "Last-Modified: " + formatHttpDate(lastModified) + "\r\n" +
+                    "Cache-Control: no-cache\r\n" +
+                    "Accept-Ranges: bytes\r\n";
+
+            // 1. Conditional GET (If-None-Match wins over If-Modified-Since)
+            String ifNoneMatch = headers.get("if-none-match");
+            boolean notModified;
+            if (ifNoneMatch != null) {
+                notModified = etagMatches(ifNoneMatch, etag);
+            } else {
+                long since = parseHttpDate(headers.get("if-modified-since"));
+                notModified = since >= 0 && lastModified / 1000 <= since / 1000;
+            }
+            if (notModified) {
+                os.write(("HTTP/1.1 304 Not Modified\r\n" + validators + "\r\n").getBytes());
+                return;
+            }
+
+            // 2. Ranges (ignored if If-Range names another version of the file)
+            String range = headers.get("range");
+            String ifRange = headers.get("if-range");
+            if (range != null && ifRange != null && !ifRange.equals(etag)
+                    && parseHttpDate(ifRange) / 1000 != lastModified / 1000) {
+                range = null;
+            }
+            long[] ranges = range != null ? parseRanges(range, length) : null;
+
+            if (ranges == null) {
+                os.write("HTTP/1.1 200 OK\r\n".getBytes());
+                os.write(("Content-Type: " + contentType + "\r\n").getBytes());
+                os.write(("Content-Length: " + length + "\r\n").getBytes());
+                os.write(validators.getBytes());
+                os.write("\r\n".getBytes());
+                connection.sendFile(file, length);
+            } else if (ranges.length == 0) {
+                os.write("HTTP/1.1 416 Range Not Satisfiable\r\n".getBytes());
+                os.write(("Content-Range: bytes */" + length + "\r\n").getBytes());
+                os.write("Content-Length: 0\r\n".getBytes());
+                os.write(validators.getBytes());
+                os.write("\r\n".getBytes());
+            } else if (ranges.length == 2) {
+                long start = ranges[0];
+                long end = ranges[1];
+                os.write("HTTP/1.1 206 Partial Content\r\n".getBytes());
+                os.write(("Content-Type: " + contentType + "\r\n").getBytes());
+                os.write(("Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n").getBytes());
+                os.write(("Content-Length: " + (end - start + 1) + "\r\n").getBytes());
+                os.write(validators.getBytes());
+                os.write("\r\n".getBytes());
+                connection.sendFile(file, start, end - start + 1);
+            } else {
+                // multipart/byteranges: compute the exact body size first
+                int parts = ranges.length / 2;
+                byte[][] partHeaders = new byte[parts][];
+                byte[] closing = ("\r\n--" + RANGES_BOUNDARY + "--\r\n").getBytes();
+                long bodyLength = closing.length;
+                for (int i = 0; i < parts; i++) {
+                    long start = ranges[2 * i];
+                    long end = ranges[2 * i + 1];
+                    partHeaders[i] = ("\r\n--" + RANGES_BOUNDARY + "\r\n" +
+                            "Content-Type: " + contentType + "\r\n" +
+                            "Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n\r\n").getBytes();
+                    bodyLength += partHeaders[i].length + (end - start + 1);
+                }
+                os.write("HTTP/1.1 206 Partial Content\r\n".getBytes());
+                os.write(("Content-Type: multipart/byteranges; boundary=" + RANGES_BOUNDARY + "\r\n").getBytes());
+                os.write(("Content-Length: " + bodyLength + "\r\n").getBytes());
+                os.write(validators.getBytes());
+                os.write("\r\n".getBytes());
+                for (int i = 0; i < parts; i++) {
+                    os.write(partHeaders[i]);
+                    connection.sendFile(file, ranges[2 * i], ranges[2 * i + 1] - ranges[2 * i] + 1);
+                }
+                os.write(closing);
+            }
+        }
+
+        /**
+         * GET /api/frame?file=video_X.mjpeg&amp;index=N  (or &amp;t=MS from the first frame)
+         * Returns a single JPEG from a recording using its frame index, so the dashboard can
+         * scrub and preview a clip a few KB at a time instead of downloading all of it.
+         * Headers <code>X-Frame-Index</code> / <code>X-Frame-Count</code> report the
+         * frame that was served and the clip length.
+         */
+        private void serveFrame(OutputStream os, String uri) throws IOException {
+            Map<String, String> query = parseQuery(uri);
+            String fileName = query.get("file");
+            if (fileName == null || fileName.contains("/") || fileName.contains("..")
+                    || !fileName.endsWith(".mjpeg")) {
+                sendError(os, "400 Bad Request");
+                return;
+            }
             File file = new File(STORAGE_DIR, fileName);
             if (!file.exists()) {
                 send404(os);
                 return;
             }
 
+            // Never persist a scanned index for the clip that is still growing
+            boolean recordingNow = file.equals(SentinelService.getCurrentRecordingFile())
+                    && SentinelService.isRecordingPublic;
+            FrameIndex index = FrameIndex.load(file, !recordingNow);
+
+            int frame;
+            try {
+                if (query.containsKey("t"))
+                    frame = index.frameAtTime(Long.parseLong(query.get("t")), fileName);
+                else
+                    frame = Integer.parseInt(query.containsKey("index") ? query.get("index") : "0");
+            } catch (NumberFormatException e) {
+                sendError(os, "400 Bad Request");
+                return;
+            }
+            if (frame < 0 || frame >= index.getFrameCount()) {
+                send404(os);
+                return;
+            }
+
+            int length = index.getLength(frame);
             os.write("HTTP/1.1 200 OK\r\n".getBytes());
             os.write("Content-Type: image/jpeg\r\n".getBytes());
-            os.write(("Content-Length: " + file.length() + "\r\n").getBytes());
+            os.write(("Content-Length: " + length + "\r\n").getBytes());
+            os.write("Cache-Control: max-age=86400\r\n".getBytes()); // Frames never change once written
+            os.write(("X-Frame-Index: " + frame + "\r\n").getBytes());
+            os.write(("X-Frame-Count: " + index.getFrameCount() + "\r\n").getBytes());
             os.write("\r\n".getBytes());
+            connection.sendFile(file, index.getOffset(frame), length);
+        }
 
-            FileInputStream fis = new FileInputStream(file);
-            byte[] buf = new byte[8192];
-            int len;
-            while ((len = fis.read(buf)) > 0) {
-                os.write(buf, 0, len);
+        /**
+         * GET|POST /api/mask[?rects=x,y,w,h;x,y,w,h]
+         * Reads or replaces the motion ignore zones (rectangles in percent of the frame).
+         * Without <code>rects</code> the current mask is returned; <code>rects=</code>
+         * (empty) clears it.
+         * Response: JSON {"rects":[[x,y,w,h],...]}
+         */
+        private void serveMask(OutputStream os, String uri) throws IOException {
+            Map<String, String> query = parseQuery(uri);
+            if (query.containsKey("rects")) {
+                SentinelService.updateMask(MotionMask.parse(query.get("rects")));
             }
-            fis.close();
-            os.flush();
+
+            String json = SentinelService.motionMask.toJson();
+            os.write("HTTP/1.1 200 OK\r\n".getBytes());
+            os.write("Content-Type: application/json\r\n".getBytes());
+            os.write("Cache-Control: no-cache\r\n".getBytes());
+            os.write(("Content-Length: " + json.length() + "\r\n").getBytes());
+            os.write("\r\n".getBytes());
+            os.write(json.getBytes());
+        }
+
+        /**
+         * GET /api/metrics[?reset=1]
+         * Per-stage latency (p50/p95/p99 in ms) and input/processed/encoded/dropped fps.
+         * <code>reset=1</code> clears the histograms after answering.
+         */
+        private void serveMetrics(OutputStream os, String uri) throws IOException {
+            String json = SentinelService.getMetricsJson(uri.contains("reset=1"));
+            os.write("HTTP/1.1 200 OK\r\n".getBytes());
+            os.write("Content-Type: application/json\r\n".getBytes());
+            os.write("Cache-Control: no-cache\r\n".getBytes());
+            os.write(("Content-Length: " + json.length() + "\r\n").getBytes());
+            os.write("\r\n".getBytes());
+            os.write(json.getBytes());
+        }
+
+        /**
+         * GET /api/history?metric=NAME[&range=RANGE]
+         * Past values of one telemetry metric (temp, battery, charging, storage, fps,
+         * recording). RANGE is seconds or "90s", "30m", "12h" (default 5m, up to 48h); the
+         * step is 1 s, 1 min or 15 min depending on it.
+         * Response: JSON {"metric":"temp", "step":60, "end":EPOCH_S, "avg":[...], "max":[...]}
+         */
+        private void serveHistory(OutputStream os, String uri) throws IOException {
+            Map<String, String> query = parseQuery(uri);
+            int metric = TelemetryHistory.metricOf(query.containsKey("metric") ? query.get("metric") : "");
+            long rangeMs;
+            try {
+                rangeMs = TelemetryHistory.parseRange(query.containsKey("range") ? query.get("range") : "5m");
+            } catch (NumberFormatException e) {
+                rangeMs = -1;
+            }
+            if (metric < 0 || rangeMs < 0) {
+                String msg = "metric must be one of " + TelemetryHistory.getMetricNames()
+                        + "; range like 300, 90s, 30m or 12h";
+                os.write("HTTP/1.1 400 Bad Request\r\n".getBytes());
+                os.write("Content-Type: text/plain\r\n".getBytes());
+                os.write(("Content-Length: " + msg.length() + "\r\n").getBytes());
+                os.write("\r\n".getBytes());
+                os.write(msg.getBytes());
+                return;
+            }
+
+            String json = SentinelService.getHistoryJson(metric, rangeMs);
+            os.write("HTTP/1.1 200 OK\r\n".getBytes());
+            os.write("Content-Type: application/json\r\n".getBytes());
+            os.write("Cache-Control: no-cache\r\n".getBytes());
+            os.write(("Content-Length: " + json.length() + "\r\n").getBytes());
+            os.write("\r\n".getBytes());
+            os.write(json.getBytes());
+        }
+
+        /**
+         * GET /api/motion_grid
+         * Per-cell changed-sample counts of the last analysed frame.
+         * Response: JSON {"cols":16, "rows":12, "total":N, "cells":[...row-major...]}
+         */
+        private void serveMotionGrid(OutputStream os) throws IOException {
+            String json = SentinelService.getMotionGridJson();
+            os.write("HTTP/1.1 200 OK\r\n".getBytes());
+            os.write("Content-Type: application/json\r\n".getBytes());
+            os.write("Cache-Control: no-cache\r\n".getBytes());
+            os.write(("Content-Length: " + json.length() + "\r\n").getBytes());
+            os.write("\r\n".getBytes());
+            os.write(json.getBytes());
         }
 
+        /**
+         * GET /stats
+         * Device vitals plus one diagnostics object per pipeline component (stream,
+         * detector, pool, encoder, queue, governor, thermal, preroll). <code>preroll</code>
+         * is the pre-roll ring's memory use; while pre-roll is on (off by default), idle
+         * frames are JPEG-encoded for it even with nobody watching, so the encoder's
+         * skipped-frame savings no longer apply.
+         */
         private void serveStats(OutputStream os) throws IOException {
             int batLevel = SystemStats.getBatteryLevel(context);
             boolean charging = SystemStats.isCharging(context);
             String freeStorage = SystemStats.getFreeStorageSpace(); // e.g. "1.2 GB"
-            int temp = ThermalGuardian.getBatteryTemperature(context);
+            int temp = SentinelService.getBatteryTemperature(context);
 
             // Manual JSON construction to avoid external libs
             String json = String.format(
-                    "{\"bat\":%d, \"charging\":%b, \"temp\":%d, \"storage\":\"%s\", \"recording\":%b}",
-                    batLevel, charging, temp, freeStorage, SentinelService.isRecordingPublic);
+                    "{\"bat\":%d, \"charging\":%b, \"temp\":%d, \"storage\":\"%s\", \"recording\":%b, \"stream\":%s, \"detector\":%s, \"pool\":%s, \"encoder\":%s, \"queue\":%s, \"governor\":%s, \"thermal\":%s, \"preroll\":%s}",
+                    batLevel, charging, temp, freeStorage, SentinelService.isRecordingPublic, getStreamStatsJson(),
+                    SentinelService.getDetectorStatsJson(), SentinelService.getFramePoolStatsJson(),
+                    SentinelService.getEncoderStatsJson(), SentinelService.getQueueStatsJson(),
+                    SentinelService.getGovernorStatsJson(), SentinelService.getThermalStatsJson(),
+                    SentinelService.getPreRollStatsJson());
 
             os.write("HTTP/1.1 200 OK\r\n".getBytes());
             os.write("Content-Type: application/json\r\n".getBytes());
@@ -261,7 +1156,8 @@ public class NanoHttpServer {
         /**
          * GET /api/settings
          * Returns the current application configuration.
-         * Response: JSON {"sens": 90, "time": 10, "active": true, "rot": 0}
+         * Response: JSON {"sens": 90, "time": 10, "active": true, "rot": 0, "flip": 0, "mode": 0, "bgRate": 2, "queue": 0,
+         * "thermal": "42,45,48,52", "thermalHyst": "5", "thermalFps": "8,4,2", "thermalQuality": 40, "preroll": 3}
          */
         private void serveSettings(OutputStream os) throws IOException {
             // Retrieve current settings
@@ -269,9 +1165,18 @@ public class NanoHttpServer {
             int time = SentinelService.recordingTimeout;
             boolean active = SentinelService.isDetectorActive;
             int rot = SentinelService.cameraRotation;
+            int flip = SentinelService.cameraFlip;
+            int mode = SentinelService.detectorMode;
+            int bgRate = SentinelService.backgroundLearningRate;
+            int queue = SentinelService.queuePolicy;
+            String thermal = SentinelService.thermalThresholds;
+            String thermalHyst = SentinelService.thermalHysteresis;
+            String thermalFps = SentinelService.thermalFps;
+            int thermalQuality = SentinelService.thermalQuality;
+            int preroll = SentinelService.preRollSeconds;
 
-            String json = String.format("{\"sens\":%d, \"time\":%d, \"active\":%b, \"rot\":%d}",
-                    sens, time, active, rot);
+            String json = String.format("{\"sens\":%d, \"time\":%d, \"active\":%b, \"rot\":%d, \"flip\":%d, \"mode\":%d, \"bgRate\":%d, \"queue\":%d, \"thermal\":\"%s\", \"thermalHyst\":\"%s\", \"thermalFps\":\"%s\", \"thermalQuality\":%d, \"preroll\":%d}",
+                    sens, time, active, rot, flip, mode, bgRate, queue, thermal, thermalHyst, thermalFps, thermalQuality, preroll);
 
             os.write("HTTP/1.1 200 OK\r\n".getBytes());
             os.write("Content-Type: application/json\r\n".getBytes());
@@ -282,7 +1187,15 @@ public class NanoHttpServer {
         /**
          * POST /api/save_settings
          * Updates the application configuration on the fly.
-         * Params: ?sens=INT&time=INT&active=BOOL&rot=INT
+         * Params: ?sens=INT&time=INT&active=BOOL&rot=INT[&flip=INT&mode=INT&bgRate=INT&queue=INT
+         * &thermal=C,C,C,C&thermalHyst=C&thermalFps=F,F,F&thermalQuality=INT&preroll=INT]
+         * (rot: 0/90/180/270 clockwise; flip: 1 = mirror, 2 = upside down;
+         * queue: 0 = drop oldest, 1 = drop newest when processing falls behind;
+         * thermal: degrees entering warm, hot, very hot and critical; thermalHyst: degrees
+         * below a threshold to leave its level; thermalFps: processing caps of warm, hot and
+         * very hot (also critical), not increasing; thermalQuality: JPEG quality from hot
+         * upwards, 1-100; preroll: seconds before the trigger kept for
+         * each clip, 0 = off (default), at most 10)
          *
          * @param uri The full request URI containing query parameters.
          */
@@ -293,6 +1206,15 @@ public class NanoHttpServer {
              int time = 10;
              boolean active = true;
              int rot = 0;
+             int flip = SentinelService.cameraFlip;
+             int mode = SentinelService.detectorMode;
+             int bgRate = SentinelService.backgroundLearningRate;
+             int queue = SentinelService.queuePolicy;
+             String thermal = SentinelService.thermalThresholds;
+             String thermalHyst = SentinelService.thermalHysteresis;
+             String thermalFps = SentinelService.thermalFps;
+             int thermalQuality = SentinelService.thermalQuality;
+             int preroll = SentinelService.preRollSeconds;
 
              try {
                  if (uri.contains("?")) {
@@ -307,10 +1229,23 @@ public class NanoHttpServer {
                              else if (key.equals("time")) time = Integer.parseInt(val);
                              else if (key.equals("active")) active = Boolean.parseBoolean(val);
                              else if (key.equals("rot")) rot = Integer.parseInt(val);
+                             else if (key.equals("flip")) flip = Integer.parseInt(val);
+                             else if (key.equals("mode")) mode = Integer.parseInt(val);
+                             else if (key.equals("bgRate")) bgRate = Integer.parseInt(val);
+                             else if (key.equals("queue")) queue = Integer.parseInt(val);
+                             else if (key.equals("thermal")) thermal = val.replace("%2C", ",").replace("%2c", ",");
+                             else if (key.equals("thermalHyst")) thermalHyst = val;
+                             else if (key.equals("thermalFps")) thermalFps = val.replace("%2C", ",").replace("%2c", ",");
+                             else if (key.equals("thermalQuality")) thermalQuality = Integer.parseInt(val);
+                             else if (key.equals("preroll")) preroll = Integer.parseInt(val);
                          }
                      }
                  }
-                 SentinelService.updateSettings(sens, time, active, rot);
+                 SentinelService.updateSettings(sens, time, active, rot, flip);
+                 SentinelService.updateDetectorSettings(mode, bgRate);
+                 SentinelService.updateQueuePolicy(queue);
+                 SentinelService.updateThermalSettings(thermal, thermalHyst, thermalFps, thermalQuality);
+                 SentinelService.updatePreRoll(preroll);
              } catch (Exception e) {
                  e.printStackTrace();
              }
@@ -320,34 +1255,31 @@ public class NanoHttpServer {
              os.write("\r\n".getBytes());
              os.write("OK".getBytes());
         }
-        private void serveWaitStatus(OutputStream os, String uri) throws IOException {
+        /**
+         * GET /wait_status?current_state=BOOL
+         * Long-poll: answers as soon as the recording state differs from the client's, or
+         * after a 30s heartbeat. Waiting costs no thread; the connection is parked and the
+         * selector thread answers it.
+         *
+         * @return true if the request was parked instead of answered.
+         */
+        private boolean serveWaitStatus(OutputStream os, String uri) throws IOException {
             // Parse query params manually (uri contains ?current_state=true/false)
             boolean clientState = false;
             if (uri.contains("current_state=true"))
                 clientState = true;
 
-            long start = System.currentTimeMillis();
-            synchronized (SentinelService.statusLock) {
-                // Wait until state is different from clientState or timeout
-                while (SentinelService.isRecordingPublic == clientState) {
-                    long now = System.currentTimeMillis();
-                    if (now - start > 30000)
-                        break; // 30s heartbeat
-                    try {
-                        SentinelService.statusLock.wait(30000);
-                    } catch (InterruptedException e) {
-                    }
-                }
+            if (SentinelService.isRecordingPublic != clientState) {
+                writeWaitStatusResponse(os);
+                return false;
             }
 
-            String json = "{\"recording\":" + SentinelService.isRecordingPublic + "}";
-            os.write("HTTP/1.1 200 OK\r\n".getBytes());
-            os.write("Content-Type: application/json\r\n".getBytes());
-            os.write("Cache-Control: no-cache\r\n".getBytes());
-            os.write(("Content-Length: " + json.length() + "\r\n").getBytes());
-            os.write("\r\n".getBytes());
-            os.write(json.getBytes());
-            os.flush();
+            connection.waitState = clientState;
+            connection.waitStart = System.currentTimeMillis();
+            statusWaiters.add(connection);
+            // The state may have flipped before we were queued
+            notifyStatusChanged();
+            return true;
         }
 
         private void serveLatestVideoMeta(OutputStream os) throws IOException {
@@ -388,6 +1320,10 @@ public class NanoHttpServer {
         private void send404(OutputStream os) throws IOException {
             os.write("HTTP/1.1 404 Not Found\r\n\r\n".getBytes());
         }
+
+        private void sendError(OutputStream os, String status) throws IOException {
+            os.write(("HTTP/1.1 " + status + "\r\n\r\n").getBytes());
+        }
     }
 
     private String generateDashboardHtml() {
@@ -445,7 +1381,7 @@ public class NanoHttpServer {
         int batLevel = SystemStats.getBatteryLevel(context);
         boolean charging = SystemStats.isCharging(context);
         String freeStorage = SystemStats.getFreeStorageSpace();
-        int temp = ThermalGuardian.getBatteryTemperature(context);
+        int temp = SentinelService.getBatteryTemperature(context);
 
         // Version
         String versionName = "v?";
@@ -574,13 +1510,47 @@ public class NanoHttpServer {
                 "     </div>\n" +
                 "\n" +
                 "     <div class='settings-row'>\n" +
+                "        <label>Pre-grabación:</label>\n" +
+                "        <div>\n" +
+                "           <select id='set-preroll' style='background:#333; color:white; padding:5px; border-radius:4px;'>\n" +
+                "              <option value='0'>No</option>\n" +
+                "              <option value='3'>3 seg</option>\n" +
+                "              <option value='5'>5 seg</option>\n" +
+                "              <option value='10'>10 seg</option>\n" +
+                "           </select>\n" +
+                "        </div>\n" +
+                "     </div>\n" +
+                "\n" +
+                "     <div class='settings-row'>\n" +
+                "        <label>Detector:</label>\n" +
+                "        <div>\n" +
+                "           <select id='set-mode' style='background:#333; color:white; padding:5px; border-radius:4px;'>\n" +
+                "              <option value='0'>Diferencia</option>\n" +
+                "              <option value='1'>Fondo</option>\n" +
+                "           </select>\n" +
+                "        </div>\n" +
+                "     </div>\n" +
+                "\n" +
+                "     <div class='settings-row'>\n" +
                 "        <label>Rotación:</label>\n" +
                 "        <div>\n" +
                 "           <input type='radio' name='rot' value='0' id='rot-0' checked> 0°\n" +
+                "           <input type='radio' name='rot' value='90' id='rot-90'> 90°\n" +
                 "           <input type='radio' name='rot' value='180' id='rot-180'> 180°\n" +
+                "           <input type='radio' name='rot' value='270' id='rot-270'> 270°\n" +
                 "        </div>\n" +
                 "     </div>\n" +
                 "\n" +
+                "     <div class='settings-row'>\n" +
+                "        <label>Espejo:</label>\n" +
+                "        <input type='checkbox' id='set-mirror' style='transform: scale(1.5);'>\n" +
+                "     </div>\n" +
+                "\n" +
+                "     <div class='settings-row'>\n" +
+                "        <label>Voltear:</label>\n" +
+                "        <input type='checkbox' id='set-vflip' style='transform: scale(1.5);'>\n" +
+                "     </div>\n" +
+                "\n" +
                 "     <div style='display:flex; margin-top:20px;'>\n" +
                 "        <button class='btn-save' onclick='saveSettings()'>GUARDAR</button>\n" +
                 "        <button class='btn-cancel' onclick='closeSettings()'>CANCELAR</button>\n" +
@@ -767,8 +1737,12 @@ public class NanoHttpServer {
                 "     document.getElementById('sens-label').innerText = data.sens + '%';\n" +
                 "     document.getElementById('set-time').value = data.time;\n" +
                 "     document.getElementById('set-active').checked = data.active;\n" +
-                "     if(data.rot === 180) document.getElementById('rot-180').checked = true;\n" +
-                "     else document.getElementById('rot-0').checked = true;\n" +
+                "     document.getElementById('set-mode').value = data.mode;\n" +
+                "     document.getElementById('set-preroll').value = data.preroll;\n" +
+                "     var rotRadio = document.getElementById('rot-' + data.rot) || document.getElementById('rot-0');\n" +
+                "     rotRadio.checked = true;\n" +
+                "     document.getElementById('set-mirror').checked = (data.flip & 1) !== 0;\n" +
+                "     document.getElementById('set-vflip').checked = (data.flip & 2) !== 0;\n" +
                 "     updateSensLabel(data.sens);\n" +
                 "  });\n" +
                 "}\n" +
@@ -776,12 +1750,16 @@ public class NanoHttpServer {
                 "    var active = document.getElementById('set-active').checked;\n" +
                 "    var sens = document.getElementById('sens-slider').value;\n" +
                 "    var time = document.getElementById('set-time').value;\n" +
-                "    var rot = document.getElementById('rot-180').checked ? 180 : 0;\n" +
+                "    var rot = document.querySelector(\"input[name='rot']:checked\").value;\n" +
+                "    var flip = (document.getElementById('set-mirror').checked ? 1 : 0)\n" +
+                "             | (document.getElementById('set-vflip').checked ? 2 : 0);\n" +
+                "    var mode = document.getElementById('set-mode').value;\n" +
+                "    var preroll = document.getElementById('set-preroll').value;\n" +
                 "\n" +
                 "    // Show saving feedback\n" +
                 "    document.querySelector('.btn-save').textContent = 'Guardando...';\n" +
                 "    \n" +
-                "    fetch('/api/save_settings?sens=' + sens + '&time=' + time + '&active=' + active + '&rot=' + rot, { method: 'POST' })\n" +
+                "    fetch('/api/save_settings?sens=' + sens + '&time=' + time + '&active=' + active + '&rot=' + rot + '&flip=' + flip + '&mode=' + mode + '&preroll=' + preroll, { method: 'POST' })\n" +
                 "    .then(function() {\n" +
                 "        setTimeout(function() {\n" +
                 "            location.reload();\n" +
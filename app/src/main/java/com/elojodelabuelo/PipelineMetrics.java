@@ -0,0 +1,142 @@
+package com.elojodelabuelo;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where frame time goes: one {@link LatencyHistogram} per pipeline stage plus the frame
+ * rates at the pipeline's input and outputs.
+ * <p>
+ * <b>Stages</b> (camera thread, then processing thread):
+ * <ul>
+ *     <li><b>detect</b>: motion scoring in <code>onPreviewFrame</code>.</li>
+ *     <li><b>pickup</b>: capture until the processing thread starts on the frame
+ *     (queueing delay, millisecond resolution).</li>
+ *     <li><b>rotate</b>: {@link NV21Transform} before encoding (only when not identity).</li>
+ *     <li><b>encode</b>: JPEG compression.</li>
+ *     <li><b>write</b>: <code>saveToFile</code> (recording only).</li>
+ *     <li><b>broadcast</b>: hand-off to the stream viewers.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * <b>Rates:</b> frames per second of camera input, frames processed (passed the
+ * {@link FrameRateGovernor}), frames encoded, and frames dropped (throttled or discarded
+ * by the capture queue), recomputed once per second by {@link #tick} on the camera
+ * thread.
+ * </p>
+ * Cost: a couple of <code>System.nanoTime()</code> calls and atomic increments per stage,
+ * a few microseconds per frame against the tens of milliseconds a frame takes.
+ */
+public class PipelineMetrics {
+
+    private static final long RATE_WINDOW_MS = 1000;
+
+    public final LatencyHistogram detect = new LatencyHistogram();
+    public final LatencyHistogram pickup = new LatencyHistogram();
+    public final LatencyHistogram rotate = new LatencyHistogram();
+    public final LatencyHistogram encode = new LatencyHistogram();
+    public final LatencyHistogram write = new LatencyHistogram();
+    public final LatencyHistogram broadcast = new LatencyHistogram();
+
+    private final AtomicLong inputFrames = new AtomicLong();
+    private final AtomicLong processedFrames = new AtomicLong();
+    private final AtomicLong encodedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong(); // Throttled by the governor
+    private volatile long queueDropped = 0; // Discarded by the capture queue, as of the last tick
+
+    // Rate window (camera thread), published through volatiles
+    private long windowStart = 0;
+    private long windowInput, windowProcessed, windowEncoded, windowDropped;
+    private volatile float inputFps, processedFps, encodedFps, droppedFps;
+
+    public void onInputFrame() {
+        inputFrames.incrementAndGet();
+    }
+
+    public void onProcessedFrame() {
+        processedFrames.incrementAndGet();
+    }
+
+    public void onEncodedFrame() {
+        encodedFrames.incrementAndGet();
+    }
+
+    public void onDroppedFrame() {
+        droppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Rolls the rate window when a second has passed. Call per frame, camera thread.
+     *
+     * @param queueDropped Total frames discarded by the capture queue (counted as drops).
+     */
+    public void tick(long now, long queueDropped) {
+        this.queueDropped = queueDropped;
+        long elapsed = now - windowStart;
+        if (elapsed >= 0 && elapsed < RATE_WINDOW_MS)
+            return;
+        long input = inputFrames.get();
+        long processed = processedFrames.get();
+        long encoded = encodedFrames.get();
+        long dropped = droppedFrames.get() + queueDropped;
+        if (windowStart != 0 && elapsed > 0) {
+            float perSecond = 1000f / elapsed;
+            inputFps = (input - windowInput) * perSecond;
+            processedFps = (processed - windowProcessed) * perSecond;
+            encodedFps = (encoded - windowEncoded) * perSecond;
+            droppedFps = (dropped - windowDropped) * perSecond;
+        }
+        windowStart = now;
+        windowInput = input;
+        windowProcessed = processed;
+        windowEncoded = encoded;
+        windowDropped = dropped;
+    }
+
+    /** @return frames processed per second over the last rate window. */
+    public float getProcessedFps() {
+        return processedFps;
+    }
+
+    /** Clears the histograms (the rates are always over the last second). */
+    public void reset() {
+        detect.reset();
+        pickup.reset();
+        rotate.reset();
+        encode.reset();
+        write.reset();
+        broadcast.reset();
+    }
+
+    /**
+     * Metrics as JSON: <code>{"fps":{"input":F, "processed":F, "encoded":F,
+     * "dropped":F}, "frames":{...totals...}, "stages":{"detect":{"count":N, "mean":F,
+     * "p50":F, "p95":F, "p99":F, "max":F}, ...}}</code>, latencies in milliseconds.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(String.format(Locale.US,
+                "{\"fps\":{\"input\":%.1f, \"processed\":%.1f, \"encoded\":%.1f, \"dropped\":%.1f}, ",
+                inputFps, processedFps, encodedFps, droppedFps));
+        sb.append("\"frames\":{\"input\":").append(inputFrames.get())
+                .append(", \"processed\":").append(processedFrames.get())
+                .append(", \"encoded\":").append(encodedFrames.get())
+                .append(", \"dropped\":").append(droppedFrames.get() + queueDropped).append("}, ");
+        sb.append("\"stages\":{");
+        appendStage(sb, "detect", detect, true);
+        appendStage(sb, "pickup", pickup, false);
+        appendStage(sb, "rotate", rotate, false);
+        appendStage(sb, "encode", encode, false);
+        appendStage(sb, "write", write, false);
+        appendStage(sb, "broadcast", broadcast, false);
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static void appendStage(StringBuilder sb, String name, LatencyHistogram histogram, boolean first) {
+        if (!first)
+            sb.append(", ");
+        sb.append('"').append(name).append("\":");
+        histogram.appendJson(sb);
+    }
+}
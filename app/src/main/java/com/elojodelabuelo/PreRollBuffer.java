@@ -0,0 +1,216 @@
+package com.elojodelabuelo;
+
+/**
+ * The last few seconds of encoded frames, kept while idle so a clip starts before the
+ * motion that triggered it (the approach, not just whatever came after the trigger).
+ * <p>
+ * <b>Bounds:</b> frames older than the pre-roll ({@link #setSeconds(int)}) are evicted,
+ * and so are the oldest ones whenever the buffers held exceed the byte budget of
+ * {@link #BUDGET_BYTES_PER_SECOND} per second of pre-roll. Memory is therefore bounded
+ * whatever the frame rate or the scene's complexity; a busy scene just gets a shorter
+ * pre-roll (counted as <code>overBudget</code> in the stats).
+ * </p>
+ * <p>
+ * <b>No garbage:</b> an entry is a retained {@link JpegBufferPool.JpegBuffer} (the same
+ * bytes the stream sent, not a copy) in parallel ring arrays that only grow until they fit
+ * the budget's worth of frames. Evicted and flushed buffers go back to the JPEG pool for
+ * the next encodes, so in steady state the ring allocates nothing.
+ * </p>
+ * <p>
+ * <b>Cost:</b> while enabled, every processed idle frame is JPEG-encoded for the ring even
+ * with nobody watching, which gives up the "encode only on demand" idle savings. Hence off
+ * by default.
+ * </p>
+ * Thread safe: filled and flushed by the processing thread, resized and read for
+ * <code>/stats</code> by HTTP workers. {@link #flushTo} writes outside the lock.
+ */
+public class PreRollBuffer {
+
+    public static final int DEFAULT_SECONDS = 0; // Opt-in: idle frames are only encoded while on
+    public static final int MAX_SECONDS = 10;
+
+    /**
+     * Byte budget per second of pre-roll: 10 fps in pooled JPEG buffers (32 KB each at
+     * first; the capacity held counts, not the JPEG length).
+     */
+    public static final int BUDGET_BYTES_PER_SECOND = 320 * 1024;
+
+    private static final int INITIAL_SLOTS = 16;
+
+    /** Receives flushed frames, oldest first. The buffer is borrowed for the call. */
+    public interface Sink {
+        void write(JpegBufferPool.JpegBuffer jpeg, long timestamp, int score);
+    }
+
+    // Ring, oldest entry at head (guarded by this)
+    private JpegBufferPool.JpegBuffer[] jpegs = new JpegBufferPool.JpegBuffer[INITIAL_SLOTS];
+    private long[] timestamps = new long[INITIAL_SLOTS];
+    private int[] scores = new int[INITIAL_SLOTS];
+    private int[] sizes = new int[INITIAL_SLOTS]; // Buffer capacity accounted for each entry
+    private int head = 0;
+    private int count = 0;
+    private long bytes = 0;
+
+    private int seconds;
+    private long budget;
+
+    // Diagnostics
+    private long added = 0;
+    private long evicted = 0; // Aged out or over budget
+    private long overBudget = 0; // Of which over budget
+    private long flushed = 0;
+
+    public PreRollBuffer(int seconds) {
+        setSeconds(seconds);
+    }
+
+    /**
+     * Sets the pre-roll length; 0 disables it and empties the ring.
+     *
+     * @param newSeconds Clamped to 0..{@link #MAX_SECONDS}.
+     */
+    public synchronized void setSeconds(int newSeconds) {
+        seconds = Math.max(0, Math.min(MAX_SECONDS, newSeconds));
+        budget = (long) seconds * BUDGET_BYTES_PER_SECOND;
+        if (count > 0)
+            trim(timestamps[newestSlot()]);
+    }
+
+    public synchronized int getSeconds() {
+        return seconds;
+    }
+
+    public synchronized boolean isEnabled() {
+        return seconds > 0;
+    }
+
+    /**
+     * Keeps a reference to <code>jpeg</code> and evicts what falls out of the window or the
+     * budget. Ignored when disabled or if the frame alone exceeds the budget.
+     *
+     * @param timestamp Capture time, epoch millis.
+     */
+    public synchronized void add(JpegBufferPool.JpegBuffer jpeg, long timestamp, int score) {
+        int size = jpeg.getCapacity();
+        if (seconds == 0 || size > budget)
+            return;
+        if (count > 0 && timestamp < timestamps[newestSlot()])
+            clear(); // Clock went backwards: the old frames no longer precede the new ones
+        if (count == jpegs.length)
+            grow();
+        int slot = (head + count) % jpegs.length;
+        jpegs[slot] = jpeg.retain();
+        timestamps[slot] = timestamp;
+        scores[slot] = score;
+        sizes[slot] = size;
+        count++;
+        bytes += size;
+        added++;
+        trim(timestamp);
+    }
+
+    /**
+     * Hands every frame of the last {@link #getSeconds()} seconds before <code>now</code> to
+     * <code>sink</code>, oldest first, and empties the ring. Older frames are dropped.
+     *
+     * @param now Reference time, normally the capture time of the frame that started the
+     *            recording.
+     * @return the number of frames written.
+     */
+    public int flushTo(Sink sink, long now) {
+        int written = 0;
+        while (true) {
+            JpegBufferPool.JpegBuffer jpeg;
+            long timestamp;
+            int score;
+            synchronized (this) {
+                trim(now);
+                if (count == 0)
+                    break;
+                jpeg = jpegs[head];
+                timestamp = timestamps[head];
+                score = scores[head];
+                jpegs[head] = null;
+                removeOldest(); // Our reference moves to the local
+                flushed++;
+            }
+            try {
+                sink.write(jpeg, timestamp, score);
+                written++;
+            } finally {
+                jpeg.release();
+            }
+        }
+        return written;
+    }
+
+    /** Releases every frame held. */
+    public synchronized void clear() {
+        while (count > 0) {
+            JpegBufferPool.JpegBuffer jpeg = jpegs[head];
+            jpegs[head] = null;
+            removeOldest();
+            jpeg.release();
+        }
+    }
+
+    // --- Internal (hold the lock) ---
+
+    private int newestSlot() {
+        return (head + count - 1) % jpegs.length;
+    }
+
+    /** Evicts frames older than the window ending at <code>now</code>, then over budget. */
+    private void trim(long now) {
+        long oldest = now - seconds * 1000L;
+        while (count > 0 && (timestamps[head] < oldest || bytes > budget)) {
+            if (timestamps[head] >= oldest)
+                overBudget++;
+            JpegBufferPool.JpegBuffer jpeg = jpegs[head];
+            jpegs[head] = null;
+            removeOldest();
+            jpeg.release();
+            evicted++;
+        }
+    }
+
+    private void removeOldest() {
+        bytes -= sizes[head];
+        head = (head + 1) % jpegs.length;
+        count--;
+    }
+
+    /** Doubles the ring, unrolling it so the oldest entry is at slot 0 again. */
+    private void grow() {
+        int capacity = jpegs.length * 2;
+        JpegBufferPool.JpegBuffer[] newJpegs = new JpegBufferPool.JpegBuffer[capacity];
+        long[] newTimestamps = new long[capacity];
+        int[] newScores = new int[capacity];
+        int[] newSizes = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % jpegs.length;
+            newJpegs[i] = jpegs[slot];
+            newTimestamps[i] = timestamps[slot];
+            newScores[i] = scores[slot];
+            newSizes[i] = sizes[slot];
+        }
+        jpegs = newJpegs;
+        timestamps = newTimestamps;
+        scores = newScores;
+        sizes = newSizes;
+        head = 0;
+    }
+
+    /**
+     * Ring diagnostics as JSON: <code>{"seconds":N, "budgetBytes":N, "bytes":N, "frames":N,
+     * "spanMs":N, "added":N, "evicted":N, "overBudget":N, "flushed":N}</code>
+     * (<code>bytes</code>: memory held; <code>spanMs</code>: time covered by the frames held).
+     */
+    public synchronized String getStatsJson() {
+        long span = count > 1 ? timestamps[newestSlot()] - timestamps[head] : 0;
+        return "{\"seconds\":" + seconds + ", \"budgetBytes\":" + budget + ", \"bytes\":" + bytes
+                + ", \"frames\":" + count + ", \"spanMs\":" + span + ", \"added\":" + added
+                + ", \"evicted\":" + evicted + ", \"overBudget\":" + overBudget
+                + ", \"flushed\":" + flushed + "}";
+    }
+}
@@ -15,14 +15,15 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Locale;
 import android.content.SharedPreferences;
 
@@ -37,60 +38,126 @@ public class SentinelService extends Service {
     private SurfaceTexture dummySurface;
     private NanoHttpServer httpServer;
     private MotionDetector motionDetector;
+    private final MotionGrid motionGrid = new MotionGrid(); // Reused every frame
     private ThermalGuardian thermalGuardian;
 
     private HandlerThread processingThread;
     private Handler processingHandler;
+    private HandlerThread housekeepingThread; // Slow periodic work (sensors), off the camera thread
+    private Handler housekeepingHandler;
+
+    // Phase 23: Telemetry history (/api/history), sampled every second on the housekeeping thread
+    private static final long TELEMETRY_INTERVAL_MS = 1000;
+    private final TelemetryHistory telemetry = new TelemetryHistory();
+    private final float[] telemetrySample = new float[TelemetryHistory.METRICS]; // Reused every sample
+    private final Runnable sampleTelemetry = new Runnable() {
+        @Override
+        public void run() {
+            recordTelemetry(System.currentTimeMillis());
+            Handler h = housekeepingHandler;
+            if (h != null)
+                h.postDelayed(this, TELEMETRY_INTERVAL_MS);
+        }
+    };
 
     private boolean isRecording = false;
     private long lastMotionTime = 0;
     private File currentFile;
     private FileOutputStream fileOutputStream;
     private FileOutputStream previewOutputStream; // For mini-mjpeg
+    private FrameIndex.Writer frameIndexWriter; // Sidecar .idx for the current clip
+    private long recordingBytesWritten = 0;
     private long lastPreviewTime = 0;
     
-    // Phase 9.2: Optimization
-    private boolean processNextFrame = true;
+    // Phase 19: Adaptive processing rate (replaces the Phase 9.2 process-1-skip-1 toggle)
+    private final FrameRateGovernor governor = new FrameRateGovernor();
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    // Phase 20: Per-stage latency histograms and frame rates (/api/metrics)
+    private final PipelineMetrics metrics = new PipelineMetrics();
 
     // Configurable Settings (Version 2.0)
     public static int motionSensitivity = 90;
     public static int recordingTimeout = 10; // seconds
     public static volatile boolean isDetectorActive = true;
-    public static int cameraRotation = 0; // 0 or 180
+    public static volatile int cameraRotation = 0; // 0, 90, 180 or 270 (clockwise)
+    public static volatile int cameraFlip = NV21Transform.FLIP_NONE; // NV21Transform flip bitmask
+    public static volatile int detectorMode = MotionDetector.MODE_FRAME_DIFF;
+    public static volatile int backgroundLearningRate = MotionDetector.DEFAULT_LEARNING_RATE; // percent per frame
+    public static volatile MotionMask motionMask = MotionMask.NONE; // Ignore zones
+    public static volatile int queuePolicy = FrameQueue.POLICY_DROP_OLDEST; // Overflow when not recording
+    public static volatile String thermalThresholds = "42,45,48,52"; // ThermalPolicy levels, degrees
+    public static volatile String thermalHysteresis = "5"; // Degrees
+    public static volatile String thermalFps = "8,4,2"; // Caps of warm, hot, very hot
+    public static volatile int thermalQuality = ThermalPolicy.DEFAULT_HOT_JPEG_QUALITY; // From hot upwards
+    public static volatile int preRollSeconds = PreRollBuffer.DEFAULT_SECONDS; // 0 = off
             
     // Optimization: Pre-calculated threshold
     private static int currentThreshold = 50;
     
     // Buffer management
-    private static final int NUM_BUFFERS = 3;
+    private static final int NUM_BUFFERS = 3; // Callback buffers kept queued at the camera
+    private FrameBufferPool framePool; // Owns camera, rotation and detector reference buffers
+    private volatile NV21Transform outputTransform; // Sensor -> displayed orientation, for encoding
+
+    // Camera -> FrameProcessor hand-off: bounded, drained by one reusable Runnable
+    private static final int QUEUE_CAPACITY = 4; // ~0.6 s of processed frames
+    private final FrameQueue frameQueue = new FrameQueue(QUEUE_CAPACITY, FrameQueue.POLICY_DROP_OLDEST);
+    private final Runnable drainFrames = new Runnable() {
+        @Override
+        public void run() {
+            EncodedFrame frame;
+            while ((frame = frameQueue.poll()) != null) {
+                try {
+                    metrics.pickup.recordMicros((System.currentTimeMillis() - frame.getTimestamp()) * 1000);
+                    long start = SystemClock.uptimeMillis();
+                    processFrame(frame);
+                    governor.onEncodeTime(SystemClock.uptimeMillis() - start);
+                } finally {
+                    frame.release(); // Back to the camera unless the detector or peak still hold it
+                }
+            }
+        }
+    };
+    private final JpegBufferPool jpegPool = new JpegBufferPool(); // Encoder output, shared by all consumers
+    // YuvImage wrappers per pooled pixel array (few, fixed), guarded by itself
+    private final IdentityHashMap<byte[], YuvImage> yuvImages = new IdentityHashMap<byte[], YuvImage>();
+    private volatile Rect encodeRect = new Rect(); // Full-frame crop for the current output size
+
+    // Encoder diagnostics: JPEGs produced vs processed frames nobody needed
+    private volatile long framesEncoded = 0; // Written by the processing thread
+    private volatile long framesSkipped = 0; // Written by the camera thread
+    private volatile long thumbnailsEncoded = 0; // Written by the processing thread
     
+    // Phase 25: Pre-roll (opt-in). Idle frames are encoded and kept (byte-capped) so a clip
+    // starts a few seconds before its trigger; flushed into the clip by the processing thread
+    private final PreRollBuffer preRoll = new PreRollBuffer(PreRollBuffer.DEFAULT_SECONDS);
+    private final PreRollBuffer.Sink preRollSink = new PreRollBuffer.Sink() {
+        @Override
+        public void write(JpegBufferPool.JpegBuffer jpeg, long timestamp, int score) {
+            recordFrame(jpeg, timestamp, score);
+        }
+    };
+
     // Smart Thumbnail Logic
     private int maxMotionScore = -1;
-    private byte[] bestFrameJpeg = null;
-    
-    // Software Rotation Buffer
-    /**
-     * <b>Ping-Pong Buffer Strategy</b>
-     * <p>
-     * A pool of 2 buffers is used to decouple the Prodcuer (Camera Thread) from the Consumer (Processing Thread).
-     * <ul>
-     *     <li><code>rotationBuffers[index]</code>: The "Back Buffer" being written to by the camera rotation logic.</li>
-     *     <li><code>rotationBuffers[(index + 1) % 2]</code>: The "Front Buffer" currently being read/processed by the detector.</li>
-     * </ul>
-     * This eliminates "tearing" artifacts where high-speed motion would otherwise be partially overwritten during processing.
-     * </p>
-     */
-    private byte[][] rotationBuffers; // Pool of buffers
-    private int rotationBufferIndex = 0;
+    private EncodedFrame peakFrame = null; // Referenced, encoded only when the clip closes
 
+    /** Frames are encoded in displayed orientation (see {@link #encodeJpeg}). */
+    private final EncodedFrame.Encoder jpegEncoder = new EncodedFrame.Encoder() {
+        @Override
+        public JpegBufferPool.JpegBuffer encode(byte[] nv21, int quality) {
+            return encodeJpeg(nv21, quality);
+        }
+    };
+    
     // FPS Calculation (Diagnostics) - REMOVED
     // private int frameCount = 0; // Kept for recording stats if needed, or remove if unused. Keep frameCount for video file naming.
     private int frameCount = 0;
     private long recordingStartTime = 0;
     // Real FPS Removed
     
-    // State Synchronization for Long-Polling
-    public static final Object statusLock = new Object();
+    // State Synchronization for Long-Polling (see NanoHttpServer.notifyStatusChanged)
     public static volatile boolean isRecordingPublic = false;
     public static volatile boolean isCameraError = false; // Phase 13: Watchdog flag
 
@@ -104,6 +171,18 @@ public class SentinelService extends Service {
         recordingTimeout = prefs.getInt("recordingTimeout", 10);
         isDetectorActive = prefs.getBoolean("isDetectorActive", true);
         cameraRotation = prefs.getInt("cameraRotation", 0);
+        cameraFlip = prefs.getInt("cameraFlip", NV21Transform.FLIP_NONE);
+        detectorMode = prefs.getInt("detectorMode", MotionDetector.MODE_FRAME_DIFF);
+        backgroundLearningRate = prefs.getInt("backgroundLearningRate", MotionDetector.DEFAULT_LEARNING_RATE);
+        motionMask = MotionMask.parse(prefs.getString("motionMask", ""));
+        queuePolicy = prefs.getInt("queuePolicy", FrameQueue.POLICY_DROP_OLDEST);
+        thermalThresholds = prefs.getString("thermalThresholds", thermalThresholds);
+        thermalHysteresis = prefs.getString("thermalHysteresis", thermalHysteresis);
+        thermalFps = prefs.getString("thermalFps", thermalFps);
+        thermalQuality = prefs.getInt("thermalQuality", thermalQuality);
+        preRollSeconds = prefs.getInt("preRollSeconds", PreRollBuffer.DEFAULT_SECONDS);
+        frameQueue.setPolicy(queuePolicy);
+        preRoll.setSeconds(preRollSeconds);
         
         // Calculate initial threshold (Phase 13: Exponential)
         currentThreshold = (int) (10000 * Math.pow(1 - (motionSensitivity / 100.0), 2));
@@ -121,7 +200,19 @@ public class SentinelService extends Service {
 
         // 3. Components
         motionDetector = new MotionDetector();
+        motionDetector.setMode(detectorMode);
+        motionDetector.setLearningRate(backgroundLearningRate);
+        motionDetector.setMask(sensorMask(motionMask));
         thermalGuardian = new ThermalGuardian();
+        thermalGuardian.setListener(new ThermalGuardian.Listener() {
+            @Override
+            public void onLevelChanged(int from, int to, int temperature) {
+                Log.i(TAG, String.format(Locale.US, "Thermal %s -> %s at %.1f C",
+                        ThermalPolicy.nameOf(from), ThermalPolicy.nameOf(to), temperature / 10f));
+            }
+        });
+        configureThermalPolicy(thermalGuardian.getPolicy(), thermalThresholds, thermalHysteresis,
+                thermalFps, thermalQuality);
         httpServer = new NanoHttpServer(this);
         httpServer.start();
 
@@ -130,6 +221,15 @@ public class SentinelService extends Service {
         processingThread.start();
         processingHandler = new Handler(processingThread.getLooper());
 
+        // Housekeeping Thread: thermal sampling every 5 s, battery broadcasts and storage
+        // refreshes (Phase 24 stats snapshot), telemetry every second
+        housekeepingThread = new HandlerThread("Housekeeping");
+        housekeepingThread.start();
+        housekeepingHandler = new Handler(housekeepingThread.getLooper());
+        thermalGuardian.start(housekeepingHandler);
+        SystemStats.start(this, housekeepingHandler);
+        housekeepingHandler.post(sampleTelemetry);
+
         // 5. Camera
         startCamera();
     }
@@ -161,9 +261,23 @@ public class SentinelService extends Service {
 
             // Calculate buffer size
             int bufferSize = PREVIEW_WIDTH * PREVIEW_HEIGHT * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
-            for (int i = 0; i < NUM_BUFFERS; i++) {
-                camera.addCallbackBuffer(new byte[bufferSize]);
+            if (framePool == null || framePool.getBufferSize() != bufferSize) {
+                framePool = new FrameBufferPool(bufferSize);
+                synchronized (yuvImages) {
+                    yuvImages.clear(); // Keyed by the old pool's arrays
+                }
             }
+            outputTransform = new NV21Transform(PREVIEW_WIDTH, PREVIEW_HEIGHT, cameraRotation, cameraFlip);
+            // Queue NUM_BUFFERS at the camera; every released frame tops it back up
+            framePool.setLender(new FrameBufferPool.Lender() {
+                @Override
+                public void lend(byte[] buffer) {
+                    Camera c = camera;
+                    if (c != null) {
+                        c.addCallbackBuffer(buffer);
+                    }
+                }
+            }, NUM_BUFFERS);
 
             dummySurface = new SurfaceTexture(10);
             camera.setPreviewTexture(dummySurface);
@@ -256,47 +370,73 @@ public class SentinelService extends Service {
                  return; 
             }
             isCameraError = false; // Recover if we get data
+            final long captureTime = System.currentTimeMillis();
 
-
-            // Phase 9.2: Frame Throttling (50% Reduction)
-            // Process 1, Skip 1 to save CPU
-            processNextFrame = !processNextFrame;
-            if (!processNextFrame) {
-                camera.addCallbackBuffer(data); // Must return buffer!
+            // Take over the camera's reference; releasing it hands the buffer back to the camera
+            final FrameBufferPool.FrameBuffer raw = framePool.adopt(data);
+            if (raw == null) {
+                Log.w(TAG, "Preview buffer not from the frame pool, ignored");
                 return;
             }
-
-            // --- REAL FPS COUNTER REMOVED ---
-
-
-            if (thermalGuardian.isOverheating()) {
-                // Pause specific logic or just drop frame
-                // Ensure we return buffer
-                camera.addCallbackBuffer(data);
-                return;
+            metrics.onInputFrame();
+            metrics.tick(captureTime, frameQueue.getDroppedCount());
+
+
+            // Phase 19: Frame Throttling. The governor picks the rate (idle, recording,
+            // streaming, motion) and caps it for heat, battery and processing backlog
+            int thermalLevel = thermalGuardian.getLevel(); // Cached sample, no I/O
+            governor.setThermal(thermalLevel, thermalGuardian.getPolicy().maxFpsOf(thermalLevel));
+            SystemStats.Snapshot stats = SystemStats.getSnapshot(); // Field read, no IPC
+            if (stats != null && stats.batteryLevel >= 0)
+                governor.setBatteryLow(stats.batteryLevel <= LOW_BATTERY_PERCENT && !stats.charging);
+            if (isRecording && ThermalPolicy.isHalted(thermalLevel)) {
+                // Critical heat: the governor rejects every frame below, so the timeout
+                // check would never run; end the clip now instead of when it cools down
+                isRecording = false;
+                isRecordingPublic = false;
+                httpServer.notifyStatusChanged();
+                updateNotification(false);
+                closeRecordingFile();
             }
-            
-            // Software Rotation
-            byte[] processedData = data;
-            if (cameraRotation == 180) {
-                 processedData = rotateNV21Degree180(data, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+            boolean streaming = !ThermalPolicy.isStreamPaused(thermalLevel) && httpServer.hasStreamClients();
+            if (!governor.shouldProcess(captureTime, isRecording, streaming, frameQueue.size())) {
+                raw.release(); // Must return buffer!
+                metrics.onDroppedFrame();
+                return;
             }
-            
+            metrics.onProcessedFrame();
+
+            // Frames stay in sensor orientation: the score does not depend on it, the mask
+            // is mapped into sensor space and rotation/mirroring happen only when encoding
+            // (encodeJpeg)
+            final FrameBufferPool.FrameBuffer frame = raw;
+
             // Motion Detection Logic
+            int score = 0;
+            EncodedFrame encoded = null;
             if (!isDetectorActive) {
                 if (isRecording) {
                     // Force stop if detector disabled while recording
                     isRecording = false;
                     isRecordingPublic = false;
-                    synchronized (statusLock) {
-                        statusLock.notifyAll();
-                    }
+                    httpServer.notifyStatusChanged();
                     updateNotification(false);
                     closeRecordingFile();
                 }
+                motionDetector.releaseReference(); // Don't pin a stale frame while disabled
                 // Skip motion logic, but allow streaming below
             } else {
-                int score = motionDetector.getMotionScore(processedData, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+                // Idle: only the trigger and governor hold decisions matter, so let the
+                // detector stop once both are certain.
+                // Recording: full scan, the exact score picks the peak thumbnail.
+                // The detector retains the frame as its next reference (no copy).
+                long detectStart = System.nanoTime();
+                score = motionDetector.detect(frame, PREVIEW_WIDTH, PREVIEW_HEIGHT, motionGrid,
+                        isRecording ? -1 : currentThreshold,
+                        isRecording ? -1 : FrameRateGovernor.holdLevel(currentThreshold));
+                metrics.detect.recordNanos(System.nanoTime() - detectStart);
+                encoded = new EncodedFrame(frame, jpegEncoder, captureTime, score);
+                governor.onMotionScore(score, currentThreshold, captureTime);
                 
                 // Optimized: Use pre-calculated threshold
                 if (score > currentThreshold) {
@@ -304,9 +444,7 @@ public class SentinelService extends Service {
                     if (!isRecording) {
                         isRecording = true;
                         isRecordingPublic = true;
-                        synchronized (statusLock) {
-                            statusLock.notifyAll();
-                        }
+                        httpServer.notifyStatusChanged();
                         updateNotification(true);
                         openNewRecordingFile();
                     }
@@ -316,15 +454,12 @@ public class SentinelService extends Service {
                 if (isRecording) {
                     if (score > maxMotionScore) {
                         maxMotionScore = score;
-                        // Capture best frame immediately in memory
-                        try {
-                            YuvImage yuv = new YuvImage(processedData, ImageFormat.NV21, PREVIEW_WIDTH, PREVIEW_HEIGHT, null);
-                            ByteArrayOutputStream out = new ByteArrayOutputStream();
-                            yuv.compressToJpeg(new Rect(0, 0, PREVIEW_WIDTH, PREVIEW_HEIGHT), 80, out); 
-                            bestFrameJpeg = out.toByteArray();
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                        // Keep the best frame by reference; it is encoded once, when the clip closes
+                        if (peakFrame != null) {
+                            peakFrame.release();
                         }
+                        peakFrame = encoded.retain();
+                        peakFrame.pin();
                     }
                 }
 
@@ -332,9 +467,7 @@ public class SentinelService extends Service {
                 if (isRecording && (System.currentTimeMillis() - lastMotionTime > (recordingTimeout * 1000L))) {
                     isRecording = false;
                     isRecordingPublic = false;
-                    synchronized (statusLock) {
-                        statusLock.notifyAll();
-                    }
+                    httpServer.notifyStatusChanged();
                     updateNotification(false);
                     closeRecordingFile();
                 }
@@ -343,104 +476,152 @@ public class SentinelService extends Service {
             // Force Sync public state to be safe
             isRecordingPublic = isRecording;
 
-            final byte[] finalData = processedData; // Need final for inner class if not using lambda
-            processingHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    processFrame(finalData);
-                    camera.addCallbackBuffer(data); // Return buffer after processing (Must verify if we need to return 'data' specifically. Yes, 'data' is the buffer owned by Camera)
+            if (encoded == null) {
+                encoded = new EncodedFrame(frame, jpegEncoder, captureTime, score);
+            }
+
+            // Encode on demand only: no recorder and no viewer means nobody would read the
+            // JPEG (a retained peak frame keeps its pixels for the thumbnail)
+            if (!hasFrameConsumers()) {
+                framesSkipped++;
+                encoded.release();
+                // The detector still holds this frame as its reference; lend a replacement
+                // so the camera keeps all its buffers
+                framePool.refill();
+                return;
+            }
+
+            // Phase 18: Bounded hand-off. Idle overflow is dropped by policy; while recording
+            // nothing is dropped and the camera is not topped up (backpressure), so capture
+            // slows to the disk's pace instead of losing frames in the driver
+            if (frameQueue.offer(encoded, isRecording)) {
+                if (!processingHandler.post(drainFrames)) {
+                    frameQueue.clear(); // Processing thread already gone (shutdown)
                 }
-            });
+            }
+            if (!frameQueue.isFull()) {
+                framePool.refill(); // Queued frames hold camera buffers; lend replacements
+            }
         }
     };
     
     /**
-     * Rotates a YUV (NV21) image 180 degrees via software.
+     * Prepares a sensor-orientation NV21 frame for consumers: applies the configured
+     * orientation ({@link NV21Transform}, skipped when it is the identity) into a scratch
+     * pool buffer and encodes it to JPEG. Safe to call from the camera and processing threads.
      * <p>
-     * <b>Algorithm:</b> Efficiently reverses the Y plane and the UV plane (in pairs)
-     * to achieve a full 180-degree flip. This is necessary because the Galaxy S i9000
-     * driver does not support hardware rotation for preview callbacks.
-     * </p>
-     * <p>
-     * <b>Optimization:</b> Direct byte manipulation is used instead of creating Bitmap objects
-     * to avoid high Garbage Collection overhead on the 512MB RAM of the device.
-     * </p>
-     * <p>
-     * <b>Double Buffering (Ping-Pong):</b> Uses a pool of 2 buffers to switch the
-     * writing target every frame. This prevents "tearing" where the Camera thread
-     * overwrites the buffer while the Background thread is still processing it.
+     * Phase 17: the JPEG is written straight into a pooled {@link JpegBufferPool.JpegBuffer}
+     * and the <code>YuvImage</code>/<code>Rect</code> wrappers are reused, so steady-state
+     * encoding allocates no Java arrays beyond the platform encoder's own scratch.
      * </p>
      *
-     * @param data The raw NV21 byte array from the camera.
-     * @param width Frame width.
-     * @param height Frame height.
-     * @return The rotated byte array (from the pool).
+     * @param nv21 Frame as delivered by the camera (never modified).
+     * @return the JPEG with one reference owned by the caller.
      */
-    private byte[] rotateNV21Degree180(byte[] data, int width, int height) {
-        int size = width * height * 3 / 2;
-        
-        // 1. Initialize Buffer Pool (Ping-Pong)
-        if (rotationBuffers == null) {
-            rotationBuffers = new byte[2][size];
+    private JpegBufferPool.JpegBuffer encodeJpeg(byte[] nv21, int quality) {
+        NV21Transform transform = outputTransform;
+        FrameBufferPool.FrameBuffer rotated = null;
+        byte[] pixels = nv21;
+        int width = PREVIEW_WIDTH;
+        int height = PREVIEW_HEIGHT;
+        if (transform != null && !transform.isIdentity()) {
+            rotated = framePool.acquire();
+            long rotateStart = System.nanoTime();
+            transform.apply(nv21, rotated.data);
+            metrics.rotate.recordNanos(System.nanoTime() - rotateStart);
+            pixels = rotated.data;
+            width = transform.getOutputWidth();
+            height = transform.getOutputHeight();
         }
-        // Safety: Recreate if resolution changed
-        if (rotationBuffers[0].length != size) {
-             rotationBuffers = new byte[2][size];
+        JpegBufferPool.JpegBuffer out = jpegPool.acquire();
+        try {
+            long encodeStart = System.nanoTime();
+            yuvImageFor(pixels, width, height).compressToJpeg(rectFor(width, height), quality, out);
+            metrics.encode.recordNanos(System.nanoTime() - encodeStart);
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            if (rotated != null) {
+                rotated.release();
+            }
         }
+    }
 
-        // 2. Switch Buffer
-        rotationBufferIndex = (rotationBufferIndex + 1) % 2;
-        byte[] targetBuffer = rotationBuffers[rotationBufferIndex];
-
-        int i = 0;
-        int count = 0;
-
-        // 3. Invert Y (Writing to targetBuffer)
-        for (i = width * height - 1; i >= 0; i--) {
-            targetBuffer[count++] = data[i];
+    /** @return a cached <code>YuvImage</code> over <code>pixels</code> (pooled arrays only). */
+    private YuvImage yuvImageFor(byte[] pixels, int width, int height) {
+        synchronized (yuvImages) {
+            YuvImage yuv = yuvImages.get(pixels);
+            if (yuv == null || yuv.getWidth() != width || yuv.getHeight() != height) {
+                yuv = new YuvImage(pixels, ImageFormat.NV21, width, height, null);
+                yuvImages.put(pixels, yuv);
+            }
+            return yuv;
         }
+    }
 
-        // 4. Invert U and V (Writing to targetBuffer)
-        for (i = size - 1; i >= width * height; i -= 2) {
-            targetBuffer[count++] = data[i - 1]; // V
-            targetBuffer[count++] = data[i];     // U
+    /** @return the full-frame crop rectangle for the given size (read-only, shared). */
+    private Rect rectFor(int width, int height) {
+        Rect rect = encodeRect;
+        if (rect.width() != width || rect.height() != height) {
+            rect = new Rect(0, 0, width, height); // Orientation changed
+            encodeRect = rect;
         }
+        return rect;
+    }
 
-        return targetBuffer;
+    /**
+     * @return true if some consumer of encoded frames is active: the recorder, the
+     *         pre-roll or at least one <code>/stream</code> viewer (unless the thermal policy
+     *         paused streaming).
+     */
+    private boolean hasFrameConsumers() {
+        return isRecording || isPreRolling() || (isStreamingAllowed() && httpServer.hasStreamClients());
     }
 
-    private void processFrame(byte[] data) {
-        // Convert NV21 to JPEG
+    /**
+     * @return true while idle frames should be kept for the next clip's pre-roll: enabled,
+     *         detector on, and not so hot that frames are only encoded for a recording.
+     */
+    private boolean isPreRolling() {
+        return preRollSeconds > 0 && isDetectorActive && isStreamingAllowed();
+    }
+
+    /** @return false while the {@link ThermalPolicy} level pauses the live stream. */
+    private boolean isStreamingAllowed() {
+        return !ThermalPolicy.isStreamPaused(thermalGuardian.getLevel());
+    }
+
+    private void processFrame(EncodedFrame frame) {
+        // Convert NV21 to JPEG, once for all consumers
         try {
-            YuvImage yuv = new YuvImage(data, ImageFormat.NV21, PREVIEW_WIDTH, PREVIEW_HEIGHT, null);
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            yuv.compressToJpeg(new Rect(0, 0, PREVIEW_WIDTH, PREVIEW_HEIGHT), 60, out);
-            byte[] jpeg = out.toByteArray();
+            // Phase 22: lighter JPEGs when hot (ThermalPolicy)
+            int quality = thermalGuardian.getPolicy().streamQualityOf(thermalGuardian.getLevel());
+            JpegBufferPool.JpegBuffer jpeg = frame.getJpeg(quality); // Borrowed
+            framesEncoded++;
+            metrics.onEncodedFrame();
 
             // Phase 13: Priorities - Record FIRST, then Stream
             
-            // 1. Record (Disk I/O)
+            // 1. Record (Disk I/O), starting with the pre-roll if this frame opened the
+            // clip; idle frames go to the pre-roll instead
             if (isRecording) {
-                frameCount++;
-                saveToFile(jpeg);
-
-                // Smart Preview Recording (1fps)
-                long now = System.currentTimeMillis();
-                if (now - lastPreviewTime > 1000) {
-                    lastPreviewTime = now;
-                    try {
-                        if (previewOutputStream != null) {
-                            previewOutputStream.write(jpeg);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+                preRoll.flushTo(preRollSink, frame.getTimestamp());
+                recordFrame(jpeg, frame.getTimestamp(), frame.getScore());
+            } else if (isPreRolling()) {
+                preRoll.add(jpeg, frame.getTimestamp(), frame.getScore());
+            } else {
+                preRoll.clear(); // Disabled or too hot: don't hold stale frames
             }
 
-            // 2. Stream (Network I/O - Protected)
+            // 2. Stream (Network I/O - Protected), paused when very hot
+            if (!isStreamingAllowed())
+                return;
             try {
+                long broadcastStart = System.nanoTime();
                 httpServer.broadcast(jpeg);
+                metrics.broadcast.recordNanos(System.nanoTime() - broadcastStart);
             } catch (Exception e) {
                 Log.e(TAG, "Stream broadcast failed: " + e.getMessage());
             }
@@ -450,6 +631,26 @@ public class SentinelService extends Service {
         }
     }
 
+    /** Appends one frame to the open clip and, once per second of footage, to its preview. */
+    private void recordFrame(JpegBufferPool.JpegBuffer jpeg, long timestamp, int score) {
+        frameCount++;
+        long writeStart = System.nanoTime();
+        saveToFile(jpeg.getData(), jpeg.getLength(), timestamp, score);
+        metrics.write.recordNanos(System.nanoTime() - writeStart);
+
+        // Smart Preview Recording (1fps)
+        if (timestamp - lastPreviewTime > 1000) {
+            lastPreviewTime = timestamp;
+            try {
+                if (previewOutputStream != null) {
+                    previewOutputStream.write(jpeg.getData(), 0, jpeg.getLength());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private synchronized void openNewRecordingFile() {
         File dir = new File(Environment.getExternalStorageDirectory(), "ElOjoDelAbuelo");
         if (!dir.exists())
@@ -460,9 +661,19 @@ public class SentinelService extends Service {
 
         try {
             fileOutputStream = new FileOutputStream(currentFile);
+            recordingBytesWritten = 0;
+            try {
+                frameIndexWriter = new FrameIndex.Writer(FrameIndex.indexFileFor(currentFile));
+            } catch (IOException e) {
+                e.printStackTrace(); // Record without an index
+                frameIndexWriter = null;
+            }
             // Reset Smart Thumbnail stats
             maxMotionScore = -1;
-            bestFrameJpeg = null;
+            if (peakFrame != null) {
+                peakFrame.release();
+                peakFrame = null;
+            }
 
             // FPS Stats
             frameCount = 0;
@@ -486,6 +697,12 @@ public class SentinelService extends Service {
             }
             fileOutputStream = null;
 
+            File indexFile = FrameIndex.indexFileFor(currentFile);
+            if (frameIndexWriter != null) {
+                frameIndexWriter.close();
+                frameIndexWriter = null;
+            }
+
             // Close preview
             if (previewOutputStream != null) {
                 try {
@@ -506,35 +723,50 @@ public class SentinelService extends Service {
                 File newFile = new File(currentFile.getAbsolutePath().replace(".mjpeg", "_" + fps + "fps.mjpeg"));
                 if (currentFile.renameTo(newFile)) {
                     currentFile = newFile; // Update reference for Thumbnail logic below
+                    indexFile.renameTo(FrameIndex.indexFileFor(newFile));
                 }
             }
+            SystemStats.refreshStorageSoon(); // A clip was written: free space changed
 
-            // Save the BEST FRAME as .jpg (Thumbnail) in background
-            if (bestFrameJpeg != null && currentFile != null) {
-                final byte[] jpegToSave = bestFrameJpeg;
+            // Save the BEST FRAME as .jpg (Thumbnail) in background, encoding it there
+            if (peakFrame != null && currentFile != null) {
+                final EncodedFrame frameToSave = peakFrame;
                 final File videoFile = currentFile;
-                processingHandler.post(new Runnable() {
+                peakFrame = null;
+                boolean posted = processingHandler.post(new Runnable() {
                     @Override
                     public void run() {
                         try {
+                            JpegBufferPool.JpegBuffer jpegToSave = frameToSave.getJpeg(EncodedFrame.QUALITY_THUMBNAIL);
+                            thumbnailsEncoded++;
                             String jpgPath = videoFile.getAbsolutePath().replace(".mjpeg", ".jpg");
                             FileOutputStream fos = new FileOutputStream(jpgPath);
-                            fos.write(jpegToSave);
+                            fos.write(jpegToSave.getData(), 0, jpegToSave.getLength());
                             fos.close();
                             Log.d(TAG, "Smart Thumbnail saved: " + jpgPath);
-                        } catch (IOException e) {
+                        } catch (Exception e) {
                             e.printStackTrace();
+                        } finally {
+                            frameToSave.release();
                         }
                     }
                 });
+                if (!posted) {
+                    frameToSave.release(); // Processing thread already gone (shutdown)
+                }
             }
         }
     }
 
-    private synchronized void saveToFile(byte[] jpeg) {
+    private synchronized void saveToFile(byte[] jpeg, int length, long captureTime, int score) {
         if (fileOutputStream != null) {
+            if (captureTime < recordingStartTime)
+                recordingStartTime = captureTime; // Pre-roll frame: the clip is that much longer
             try {
-                fileOutputStream.write(jpeg);
+                fileOutputStream.write(jpeg, 0, length);
+                if (frameIndexWriter != null)
+                    frameIndexWriter.append(recordingBytesWritten, length, captureTime, score);
+                recordingBytesWritten += length;
             } catch (IOException e) {
                 e.printStackTrace();
                 // If write fails, maybe close file
@@ -563,6 +795,9 @@ public class SentinelService extends Service {
             camera.stopPreview();
             camera.release();
             camera = null;
+            if (framePool != null) { // Null if setupCameraParameters() failed on the first start
+                framePool.clearLender();
+            }
         }
         if (httpServer != null) {
             httpServer.stop();
@@ -570,27 +805,43 @@ public class SentinelService extends Service {
         if (processingThread != null) {
             processingThread.quit();
         }
+        if (housekeepingThread != null) {
+            Handler h = housekeepingHandler;
+            housekeepingHandler = null;
+            h.removeCallbacks(sampleTelemetry);
+            thermalGuardian.stop();
+            SystemStats.stop();
+            housekeepingThread.quit();
+        }
+        frameQueue.clear();
+        preRoll.clear();
         closeRecordingFile();
     }
     
     /**
      * Updates global configuration settings and persists them.
      * <p>
-     * If the rotation setting changes, this method triggers a camera restart
-     * to ensure the buffer sizes and logic are re-initialized correctly.
+     * Orientation changes apply from the next encoded frame: only the output
+     * {@link NV21Transform} and the sensor-space mask are rebuilt, the camera keeps running
+     * (detection works on unrotated frames).
      * </p>
      * @param sens Motion sensitivity (0-100)
      * @param time Recording timeout in seconds
      * @param active Detector active state
-     * @param rot Rotation degree (0 or 180)
+     * @param rot Clockwise rotation (0, 90, 180 or 270; anything else means 0)
+     * @param flip {@link NV21Transform} flip bitmask, applied after rotation
      */
-    public static void updateSettings(int sens, int time, boolean active, int rot) {
+    public static void updateSettings(int sens, int time, boolean active, int rot, int flip) {
         motionSensitivity = sens;
         recordingTimeout = time;
         isDetectorActive = active;
-        boolean rotationChanged = (cameraRotation != rot);
+        if (rot != 90 && rot != 180 && rot != 270)
+            rot = 0;
+        flip &= NV21Transform.FLIP_HORIZONTAL | NV21Transform.FLIP_VERTICAL;
+        boolean orientationChanged = (cameraRotation != rot || cameraFlip != flip);
 
         cameraRotation = rot;
+        cameraFlip = flip;
         
         // Update Threshold (Phase 13: Exponential)
         currentThreshold = (int) (10000 * Math.pow(1 - (motionSensitivity / 100.0), 2));
@@ -604,27 +855,291 @@ public class SentinelService extends Service {
             editor.putInt("recordingTimeout", time);
             editor.putBoolean("isDetectorActive", active);
             editor.putInt("cameraRotation", rot);
+            editor.putInt("cameraFlip", flip);
             editor.apply(); // Async save
 
-            if (rotationChanged) {
-                // Restart camera to apply rotation
-                // Do on main handler to be safe
-                if (instance.processingHandler != null) {
-                    instance.processingHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (instance.camera != null) {
-                                instance.camera.stopPreview();
-                                instance.camera.release();
-                                instance.camera = null;
-                                instance.startCamera(); // Will use new rotation
-                            }
-                        }
-                    });
+            if (orientationChanged) {
+                // No camera restart: swap the output transform and re-map the ignore zones
+                if (instance.outputTransform != null) {
+                    instance.outputTransform = new NV21Transform(instance.PREVIEW_WIDTH, instance.PREVIEW_HEIGHT,
+                            rot, flip);
+                }
+                if (instance.motionDetector != null) {
+                    instance.motionDetector.setMask(sensorMask(motionMask));
                 }
             }
         }
     }
+
+    /**
+     * Switches the motion detector between frame differencing and the running background
+     * model without restarting the camera, and persists the choice.
+     *
+     * @param mode {@link MotionDetector#MODE_FRAME_DIFF} or {@link MotionDetector#MODE_BACKGROUND}
+     * @param learningRate Background learning rate in percent per frame (1-100)
+     */
+    public static void updateDetectorSettings(int mode, int learningRate) {
+        detectorMode = mode;
+        backgroundLearningRate = Math.max(1, Math.min(100, learningRate));
+
+        if (instance != null) {
+            if (instance.motionDetector != null) {
+                instance.motionDetector.setMode(detectorMode);
+                instance.motionDetector.setLearningRate(backgroundLearningRate);
+            }
+            SharedPreferences prefs = instance.getSharedPreferences("SentinelPrefs", MODE_PRIVATE);
+            SharedPreferences.Editor editor = prefs.edit();
+            editor.putInt("detectorMode", detectorMode);
+            editor.putInt("backgroundLearningRate", backgroundLearningRate);
+            editor.apply(); // Async save
+        }
+    }
+
+    /**
+     * Replaces the motion ignore zones and persists them.
+     *
+     * @param mask Compiled lazily by the detector for the current preview size.
+     */
+    public static void updateMask(MotionMask mask) {
+        motionMask = mask;
+
+        if (instance != null) {
+            if (instance.motionDetector != null) {
+                instance.motionDetector.setMask(sensorMask(mask));
+            }
+            SharedPreferences prefs = instance.getSharedPreferences("SentinelPrefs", MODE_PRIVATE);
+            prefs.edit().putString("motionMask", mask.toSpec()).apply(); // Async save
+        }
+    }
+
+    /**
+     * Maps a mask drawn on the displayed (rotated) picture onto the raw sensor frames the
+     * detector actually scores.
+     */
+    private static MotionMask sensorMask(MotionMask mask) {
+        return mask.toSensor(cameraRotation, cameraFlip);
+    }
+
+    /**
+     * Latest per-cell motion map as JSON (see {@link MotionGrid#toJson()}), in the
+     * orientation the viewer sees. Read without locking: a concurrent frame may mix two
+     * frames' cells, which is fine for display.
+     */
+    public static String getMotionGridJson() {
+        if (instance != null) {
+            return instance.motionGrid.oriented(cameraRotation, cameraFlip).toJson();
+        }
+        return "{}";
+    }
+
+    /** Detector scan statistics as JSON (see {@link MotionDetector#getStatsJson()}). */
+    public static String getDetectorStatsJson() {
+        if (instance != null && instance.motionDetector != null) {
+            return instance.motionDetector.getStatsJson();
+        }
+        return "{}";
+    }
+
+    /**
+     * Encoder counters as JSON: <code>{"encoded":N, "skipped":N, "thumbnails":N,
+     * "buffers":{...}}</code>. <code>skipped</code> counts processed frames not encoded
+     * because nobody consumed them; <code>buffers</code> is {@link JpegBufferPool#getStatsJson()}.
+     */
+    public static String getEncoderStatsJson() {
+        if (instance != null) {
+            return "{\"encoded\":" + instance.framesEncoded + ", \"skipped\":" + instance.framesSkipped
+                    + ", \"thumbnails\":" + instance.thumbnailsEncoded
+                    + ", \"buffers\":" + instance.jpegPool.getStatsJson() + "}";
+        }
+        return "{}";
+    }
+
+    /**
+     * Pipeline latency and frame rate metrics as JSON (see {@link PipelineMetrics#toJson()}).
+     *
+     * @param reset Clear the latency histograms after reading them.
+     */
+    public static String getMetricsJson(boolean reset) {
+        if (instance != null) {
+            String json = instance.metrics.toJson();
+            if (reset)
+                instance.metrics.reset();
+            return json;
+        }
+        return "{}";
+    }
+
+    /**
+     * Takes one telemetry sample (housekeeping thread). Battery and storage come from the
+     * {@link SystemStats} snapshot, so a sample costs no system call.
+     */
+    private void recordTelemetry(long now) {
+        float[] sample = telemetrySample;
+        int temperature = thermalGuardian.getReading().temperature;
+        sample[TelemetryHistory.METRIC_TEMPERATURE] = temperature == ThermalGuardian.UNKNOWN
+                ? Float.NaN : temperature / 10f;
+        SystemStats.Snapshot stats = SystemStats.getSnapshot();
+        boolean batteryKnown = stats != null && stats.batteryLevel >= 0;
+        sample[TelemetryHistory.METRIC_BATTERY] = batteryKnown ? stats.batteryLevel : Float.NaN;
+        sample[TelemetryHistory.METRIC_CHARGING] = batteryKnown ? (stats.charging ? 1 : 0) : Float.NaN;
+        sample[TelemetryHistory.METRIC_STORAGE] = stats != null && stats.freeStorageMb >= 0
+                ? stats.freeStorageMb : Float.NaN;
+        sample[TelemetryHistory.METRIC_FPS] = metrics.getProcessedFps();
+        sample[TelemetryHistory.METRIC_RECORDING] = isRecordingPublic ? 1 : 0;
+        telemetry.record(now, sample);
+    }
+
+    /**
+     * One telemetry metric as JSON (see {@link TelemetryHistory#toJson(int, long)}).
+     *
+     * @param metric Index from {@link TelemetryHistory#metricOf(String)}.
+     */
+    public static String getHistoryJson(int metric, long rangeMs) {
+        SentinelService service = instance;
+        if (service != null) {
+            return service.telemetry.toJson(metric, rangeMs);
+        }
+        return "{}";
+    }
+
+    /**
+     * Applies the thermal ladder given in settings format, keeping the current one if
+     * any value does not parse or validate.
+     *
+     * @return true if applied.
+     */
+    private static boolean configureThermalPolicy(ThermalPolicy policy, String thresholds, String hysteresis,
+                                                  String fps, int quality) {
+        try {
+            policy.configure(ThermalPolicy.parseThresholds(thresholds), ThermalPolicy.parseTenths(hysteresis),
+                    ThermalPolicy.parseFps(fps), quality);
+            Log.i(TAG, "Thermal thresholds " + policy.getThresholdsSpec() + ", hysteresis "
+                    + policy.getHysteresisSpec() + ", fps " + policy.getFpsSpec() + ", hot quality "
+                    + policy.getHotJpegQuality());
+            return true;
+        } catch (IllegalArgumentException e) { // Includes NumberFormatException
+            Log.w(TAG, "Invalid thermal settings '" + thresholds + "' / '" + hysteresis + "' / '" + fps
+                    + "' / " + quality + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the thermal degradation ladder and persists it.
+     *
+     * @param thresholds Entry temperatures of warm, hot, very hot and critical in degrees,
+     *                   ascending, e.g. <code>"42,45,48,52"</code>.
+     * @param hysteresis Degrees below a threshold needed to leave its level, e.g. <code>"5"</code>.
+     * @param fps Processing caps of warm, hot and very hot (also critical), not increasing,
+     *            e.g. <code>"8,4,2"</code>.
+     * @param quality JPEG quality from hot upwards, 1-100.
+     */
+    public static void updateThermalSettings(String thresholds, String hysteresis, String fps, int quality) {
+        SentinelService service = instance;
+        if (service != null && service.thermalGuardian != null) {
+            ThermalPolicy policy = service.thermalGuardian.getPolicy();
+            if (!configureThermalPolicy(policy, thresholds, hysteresis, fps, quality))
+                return;
+            // Store the normalized form
+            thermalThresholds = policy.getThresholdsSpec();
+            thermalHysteresis = policy.getHysteresisSpec();
+            thermalFps = policy.getFpsSpec();
+            thermalQuality = policy.getHotJpegQuality();
+            SharedPreferences prefs = service.getSharedPreferences("SentinelPrefs", MODE_PRIVATE);
+            prefs.edit()
+                    .putString("thermalThresholds", thermalThresholds)
+                    .putString("thermalHysteresis", thermalHysteresis)
+                    .putString("thermalFps", thermalFps)
+                    .putInt("thermalQuality", thermalQuality)
+                    .apply(); // Async save
+        }
+    }
+
+    /** Thermal level, thresholds and recent transitions as JSON (see {@link ThermalPolicy#getStatsJson()}). */
+    public static String getThermalStatsJson() {
+        SentinelService service = instance;
+        if (service != null && service.thermalGuardian != null) {
+            return service.thermalGuardian.getPolicy().getStatsJson();
+        }
+        return "{}";
+    }
+
+    /**
+     * @return battery temperature in whole degrees Celsius from the guardian's last sample
+     *         (no file access), or a direct read when the service is not running.
+     */
+    public static int getBatteryTemperature(Context context) {
+        SentinelService service = instance;
+        if (service != null && service.thermalGuardian != null) {
+            return service.thermalGuardian.getTemperatureCelsius();
+        }
+        return ThermalGuardian.getBatteryTemperature(context);
+    }
+
+    /** Processing rate and the reason for it as JSON (see {@link FrameRateGovernor#getStatsJson()}). */
+    public static String getGovernorStatsJson() {
+        if (instance != null) {
+            return instance.governor.getStatsJson();
+        }
+        return "{}";
+    }
+
+    /** Capture to processing queue diagnostics as JSON (see {@link FrameQueue#getStatsJson()}). */
+    public static String getQueueStatsJson() {
+        if (instance != null) {
+            return instance.frameQueue.getStatsJson();
+        }
+        return "{}";
+    }
+
+    /**
+     * Sets what the capture queue drops when processing falls behind outside recordings
+     * and persists it.
+     *
+     * @param policy {@link FrameQueue#POLICY_DROP_OLDEST} or {@link FrameQueue#POLICY_DROP_NEWEST}.
+     */
+    public static void updateQueuePolicy(int policy) {
+        queuePolicy = policy == FrameQueue.POLICY_DROP_NEWEST ? FrameQueue.POLICY_DROP_NEWEST
+                : FrameQueue.POLICY_DROP_OLDEST;
+
+        if (instance != null) {
+            instance.frameQueue.setPolicy(queuePolicy);
+            SharedPreferences prefs = instance.getSharedPreferences("SentinelPrefs", MODE_PRIVATE);
+            prefs.edit().putInt("queuePolicy", queuePolicy).apply(); // Async save
+        }
+    }
+
+    /** Pre-roll ring diagnostics as JSON (see {@link PreRollBuffer#getStatsJson()}). */
+    public static String getPreRollStatsJson() {
+        if (instance != null) {
+            return instance.preRoll.getStatsJson();
+        }
+        return "{}";
+    }
+
+    /**
+     * Sets how many seconds before a trigger are kept for the clip and persists it.
+     *
+     * @param seconds 0 (off) to {@link PreRollBuffer#MAX_SECONDS}.
+     */
+    public static void updatePreRoll(int seconds) {
+        preRollSeconds = Math.max(0, Math.min(PreRollBuffer.MAX_SECONDS, seconds));
+
+        if (instance != null) {
+            instance.preRoll.setSeconds(preRollSeconds);
+            SharedPreferences prefs = instance.getSharedPreferences("SentinelPrefs", MODE_PRIVATE);
+            prefs.edit().putInt("preRollSeconds", preRollSeconds).apply(); // Async save
+        }
+    }
+
+    /** Frame buffer pool diagnostics as JSON (see {@link FrameBufferPool#getStatsJson()}). */
+    public static String getFramePoolStatsJson() {
+        if (instance != null && instance.framePool != null) {
+            return instance.framePool.getStatsJson();
+        }
+        return "{}";
+    }
+
     public static File getCurrentRecordingFile() {
         if (instance != null) {
             return instance.currentFile;
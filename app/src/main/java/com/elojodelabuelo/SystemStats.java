@@ -1,42 +1,208 @@
 package com.elojodelabuelo;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.BatteryManager;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.StatFs;
+import android.util.Log;
 
 import java.io.File;
 
+/**
+ * Battery and storage figures for <code>/stats</code>, the dashboard and the service.
+ * <p>
+ * <b>Snapshot:</b> once {@link #start(Context, Handler)} has run, the getters only read a
+ * volatile {@link Snapshot}: no <code>registerReceiver</code> IPC and no
+ * <code>StatFs</code> per call, so their cost does not grow with the number of polling
+ * dashboards. Battery values come from the <code>ACTION_BATTERY_CHANGED</code> broadcast
+ * as it happens; free storage is refreshed every {@link #STORAGE_REFRESH_MS} and after
+ * the app writes or deletes files ({@link #refreshStorageSoon()}).
+ * </p>
+ * Before <code>start</code> (or after {@link #stop()}) the getters query the system
+ * directly, as they always did.
+ */
 public class SystemStats {
 
+    private static final String TAG = "SystemStats";
+
+    public static final long STORAGE_REFRESH_MS = 60 * 1000;
+
+    /** Immutable set of values; fields are unknown (-1 / null) until first measured. */
+    public static class Snapshot {
+        public final int batteryLevel; // Percent, -1 unknown
+        public final boolean charging;
+        public final long freeStorageMb; // -1 unknown
+        public final String freeStorage; // Formatted, e.g. "1.20 GB", null unknown
+
+        Snapshot(int batteryLevel, boolean charging, long freeStorageMb) {
+            this.batteryLevel = batteryLevel;
+            this.charging = charging;
+            this.freeStorageMb = freeStorageMb;
+            this.freeStorage = freeStorageMb >= 0 ? formatStorage(freeStorageMb) : null;
+        }
+    }
+
+    private static volatile Snapshot snapshot; // Null while not started
+    private static Context appContext; // Guarded by SystemStats.class
+    private static Handler handler; // Guarded by SystemStats.class
+
+    private static final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateBattery(intent);
+        }
+    };
+
+    private static final Runnable storageTimer = new Runnable() {
+        @Override
+        public void run() {
+            updateStorage();
+            Handler h = handler;
+            if (h != null)
+                h.postDelayed(this, STORAGE_REFRESH_MS);
+        }
+    };
+
+    private static final Runnable storageRefresh = new Runnable() {
+        @Override
+        public void run() {
+            updateStorage();
+        }
+    };
+
+    /**
+     * Starts keeping the snapshot up to date. Broadcasts and storage refreshes run on
+     * <code>handler</code>'s thread.
+     */
+    public static synchronized void start(Context context, Handler h) {
+        if (handler != null)
+            return;
+        appContext = context.getApplicationContext();
+        handler = h;
+        snapshot = new Snapshot(-1, false, -1);
+        // Sticky broadcast: the current state arrives right away
+        Intent sticky = appContext.registerReceiver(batteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, h);
+        if (sticky != null)
+            updateBattery(sticky);
+        h.post(storageTimer);
+    }
+
+    public static synchronized void stop() {
+        if (handler == null)
+            return;
+        handler.removeCallbacks(storageTimer);
+        handler.removeCallbacks(storageRefresh);
+        try {
+            appContext.unregisterReceiver(batteryReceiver);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Battery receiver was not registered");
+        }
+        handler = null;
+        appContext = null;
+        snapshot = null;
+    }
+
+    /** Schedules a storage refresh (after a clip is written or a file deleted); coalesced. */
+    public static void refreshStorageSoon() {
+        Handler h = handler;
+        if (h != null) {
+            h.removeCallbacks(storageRefresh);
+            h.post(storageRefresh);
+        }
+    }
+
+    /** @return the current values, or null when not started. */
+    public static Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private static synchronized void updateBattery(Intent intent) {
+        Snapshot s = snapshot;
+        if (s == null)
+            return; // Stopped
+        snapshot = new Snapshot(batteryLevelOf(intent), isChargingOf(intent), s.freeStorageMb);
+    }
+
+    private static void updateStorage() {
+        long freeMb;
+        try {
+            freeMb = queryFreeStorageMb();
+        } catch (RuntimeException e) { // StatFs on missing or unmounted storage
+            freeMb = -1;
+        }
+        synchronized (SystemStats.class) {
+            Snapshot s = snapshot;
+            if (s != null)
+                snapshot = new Snapshot(s.batteryLevel, s.charging, freeMb);
+        }
+    }
+
+    // --- Getters: snapshot when available, direct query otherwise ---
+
     public static int getBatteryLevel(Context context) {
+        Snapshot s = snapshot;
+        if (s != null && s.batteryLevel >= 0)
+            return s.batteryLevel;
         Intent intent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
         if (intent == null)
             return 50; // Unknown
-        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
-        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
-        return (int) ((level / (float) scale) * 100);
+        return batteryLevelOf(intent);
     }
 
     public static boolean isCharging(Context context) {
+        Snapshot s = snapshot;
+        if (s != null && s.batteryLevel >= 0)
+            return s.charging;
         Intent intent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
         if (intent == null)
             return false;
+        return isChargingOf(intent);
+    }
+
+    /** @return free space on external storage in MB. */
+    public static long getFreeStorageMb() {
+        Snapshot s = snapshot;
+        if (s != null && s.freeStorageMb >= 0)
+            return s.freeStorageMb;
+        return queryFreeStorageMb();
+    }
+
+    public static String getFreeStorageSpace() {
+        Snapshot s = snapshot;
+        if (s != null && s.freeStorage != null)
+            return s.freeStorage;
+        return formatStorage(queryFreeStorageMb());
+    }
+
+    private static int batteryLevelOf(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0)
+            return 50; // Unknown
+        return (int) ((level / (float) scale) * 100);
+    }
+
+    private static boolean isChargingOf(Intent intent) {
         int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
         return status == BatteryManager.BATTERY_STATUS_CHARGING ||
                 status == BatteryManager.BATTERY_STATUS_FULL;
     }
 
-    public static String getFreeStorageSpace() {
+    private static long queryFreeStorageMb() {
         File path = Environment.getExternalStorageDirectory();
         StatFs stat = new StatFs(path.getPath());
         long blockSize = stat.getBlockSize();
         long availableBlocks = stat.getAvailableBlocks();
         long freeBytes = availableBlocks * blockSize;
+        return freeBytes / (1024 * 1024);
+    }
 
-        long freeMB = freeBytes / (1024 * 1024);
+    private static String formatStorage(long freeMB) {
         if (freeMB > 1024) {
             return String.format("%.2f GB", freeMB / 1024.0);
         } else {
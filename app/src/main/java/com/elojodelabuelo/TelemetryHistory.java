@@ -0,0 +1,234 @@
+package com.elojodelabuelo;
+
+import java.util.Arrays;
+
+/**
+ * In-memory time series of the device's vital signs, to correlate overheating with
+ * recording bursts or frame rate drops after the fact.
+ * <p>
+ * <b>Storage:</b> one set of primitive ring buffers per resolution, all allocated up front
+ * (constant memory, roughly 35 KB):
+ * <ul>
+ *     <li>1 s steps for the last 5 minutes,</li>
+ *     <li>1 min steps for the last 4 hours,</li>
+ *     <li>15 min steps for the last 48 hours.</li>
+ * </ul>
+ * Each step keeps the average and the maximum of the samples that fell into it, so a
+ * short temperature spike still shows at coarse resolutions. Steps without samples
+ * (service stopped, clock jump) are stored as gaps.
+ * </p>
+ * <p>
+ * <b>Writing:</b> {@link #record(long, float[])} folds one sample of every metric into the
+ * open step of each resolution; no allocation. One writer (the housekeeping thread),
+ * readers take the object lock like the writer.
+ * </p>
+ */
+public class TelemetryHistory {
+
+    // Metrics (index into the sample array)
+    public static final int METRIC_TEMPERATURE = 0; // Degrees Celsius
+    public static final int METRIC_BATTERY = 1; // Percent
+    public static final int METRIC_CHARGING = 2; // 0 or 1 (average = share of time charging)
+    public static final int METRIC_STORAGE = 3; // Free MB
+    public static final int METRIC_FPS = 4; // Processed frames per second
+    public static final int METRIC_RECORDING = 5; // 0 or 1 (average = share of time recording)
+    public static final int METRICS = 6;
+
+    private static final String[] NAMES = { "temp", "battery", "charging", "storage", "fps", "recording" };
+
+    private static final long[] STEP_MS = { 1000L, 60 * 1000L, 15 * 60 * 1000L };
+    private static final int[] CAPACITY = { 300, 240, 192 };
+
+    /** One resolution: rings of step averages and maxima, plus the open step's accumulators. */
+    private static class Series {
+        final long stepMs;
+        final int capacity;
+        final float[][] avg; // [metric][slot], NaN = gap
+        final float[][] max;
+        int newest = -1; // Slot of the newest closed step
+        int size = 0; // Closed steps stored
+        long openStart = -1; // Start of the step being accumulated, -1 before the first sample
+        final double[] sum = new double[METRICS];
+        final float[] peak = new float[METRICS];
+        final int[] count = new int[METRICS]; // Known (non-NaN) samples in the open step
+
+        Series(long stepMs, int capacity) {
+            this.stepMs = stepMs;
+            this.capacity = capacity;
+            this.avg = new float[METRICS][capacity];
+            this.max = new float[METRICS][capacity];
+        }
+
+        void add(long now, float[] values) {
+            long start = now - now % stepMs;
+            if (start != openStart) {
+                if (openStart >= 0) {
+                    close();
+                    // Gaps for whole steps without samples (bounded by the ring size)
+                    long missing = (start - openStart) / stepMs - 1;
+                    for (long i = 0; i < Math.min(missing, capacity); i++) {
+                        pushGap();
+                    }
+                }
+                openStart = start;
+                Arrays.fill(count, 0);
+                Arrays.fill(sum, 0);
+                Arrays.fill(peak, Float.NEGATIVE_INFINITY);
+            }
+            for (int m = 0; m < METRICS; m++) {
+                float value = values[m];
+                if (Float.isNaN(value))
+                    continue; // Unknown (sensor failed), ignored rather than poisoning the step
+                sum[m] += value;
+                if (value > peak[m])
+                    peak[m] = value;
+                count[m]++;
+            }
+        }
+
+        float openAverage(int m) {
+            return count[m] > 0 ? (float) (sum[m] / count[m]) : Float.NaN;
+        }
+
+        float openMax(int m) {
+            return count[m] > 0 ? peak[m] : Float.NaN;
+        }
+
+        private void close() {
+            newest = (newest + 1) % capacity;
+            for (int m = 0; m < METRICS; m++) {
+                avg[m][newest] = openAverage(m);
+                max[m][newest] = openMax(m);
+            }
+            if (size < capacity)
+                size++;
+        }
+
+        private void pushGap() {
+            newest = (newest + 1) % capacity;
+            for (int m = 0; m < METRICS; m++) {
+                avg[m][newest] = Float.NaN;
+                max[m][newest] = Float.NaN;
+            }
+            if (size < capacity)
+                size++;
+        }
+    }
+
+    private final Series[] series = new Series[STEP_MS.length];
+
+    public TelemetryHistory() {
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new Series(STEP_MS[i], CAPACITY[i]);
+        }
+    }
+
+    /** @return the metric index for a query name (e.g. "temp"), or -1. */
+    public static int metricOf(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /** @return the accepted metric names, comma separated. */
+    public static String getMetricNames() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NAMES.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(NAMES[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Folds one sample of every metric into all resolutions.
+     *
+     * @param values One value per metric, indexed by the <code>METRIC_*</code> constants
+     *               (not retained).
+     */
+    public synchronized void record(long now, float[] values) {
+        for (Series s : series) {
+            s.add(now, values);
+        }
+    }
+
+    /**
+     * Parses a range like <code>"90s"</code>, <code>"30m"</code>, <code>"12h"</code> or a
+     * plain number of seconds.
+     *
+     * @return milliseconds.
+     * @throws NumberFormatException if malformed.
+     */
+    public static long parseRange(String range) {
+        range = range.trim();
+        long unit = 1000;
+        char last = range.isEmpty() ? ' ' : range.charAt(range.length() - 1);
+        if (last == 's' || last == 'm' || last == 'h') {
+            unit = last == 'h' ? 3600 * 1000L : last == 'm' ? 60 * 1000L : 1000;
+            range = range.substring(0, range.length() - 1);
+        }
+        long value = Long.parseLong(range);
+        if (value <= 0)
+            throw new NumberFormatException("Range must be positive");
+        return value * unit;
+    }
+
+    /**
+     * Time series of one metric as compact JSON, using the finest resolution that covers
+     * <code>rangeMs</code>: <code>{"metric":"temp", "step":60, "end":EPOCH_S,
+     * "avg":[...], "max":[...]}</code>. Points are oldest first, <code>step</code> seconds
+     * apart, the last one starting at <code>end</code> (it may still be filling); gaps are
+     * <code>null</code>.
+     */
+    public synchronized String toJson(int metric, long rangeMs) {
+        Series s = series[series.length - 1];
+        for (Series candidate : series) {
+            if (candidate.stepMs * candidate.capacity >= rangeMs) {
+                s = candidate;
+                break;
+            }
+        }
+        boolean open = s.openStart >= 0; // Once started there is always a step filling
+        int wanted = (int) Math.min((rangeMs + s.stepMs - 1) / s.stepMs, s.capacity);
+        int closed = Math.min(s.size, open ? wanted - 1 : 0);
+
+        StringBuilder sb = new StringBuilder(64 + (closed + 1) * 12);
+        sb.append("{\"metric\":\"").append(NAMES[metric])
+                .append("\", \"step\":").append(s.stepMs / 1000)
+                .append(", \"end\":").append(open ? s.openStart / 1000 : 0);
+        StringBuilder maxes = new StringBuilder((closed + 1) * 6);
+        sb.append(", \"avg\":[");
+        for (int i = closed - 1; i >= 0; i--) {
+            int slot = (s.newest - i + s.capacity) % s.capacity;
+            appendValue(sb, s.avg[metric][slot], i == closed - 1);
+            appendValue(maxes, s.max[metric][slot], i == closed - 1);
+        }
+        if (open) {
+            appendValue(sb, s.openAverage(metric), closed == 0);
+            appendValue(maxes, s.openMax(metric), closed == 0);
+        }
+        sb.append("], \"max\":[").append(maxes).append("]}");
+        return sb.toString();
+    }
+
+    /** Appends a value with at most one decimal ("42", "42.5"), or null for a gap. */
+    private static void appendValue(StringBuilder sb, float value, boolean first) {
+        if (!first)
+            sb.append(',');
+        if (Float.isNaN(value)) {
+            sb.append("null");
+            return;
+        }
+        int tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            sb.append('-');
+            tenths = -tenths;
+        }
+        sb.append(tenths / 10);
+        if (tenths % 10 != 0)
+            sb.append('.').append(tenths % 10);
+    }
+}
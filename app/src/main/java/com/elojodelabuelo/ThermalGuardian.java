@@ -1,67 +1,177 @@
 package com.elojodelabuelo;
 
+import android.os.Handler;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 
+/**
+ * Battery temperature watchdog ("Cool Down Mode").
+ * <p>
+ * <b>Sampling:</b> the temperature is read from sysfs every {@link #POLL_INTERVAL_MS} on a
+ * background <code>Handler</code> (see {@link #start(Handler)}) and published as an
+ * immutable {@link Reading}. The camera thread only reads that field: no file access on
+ * the hot path.
+ * </p>
+ * <p>
+ * <b>Levels:</b> each sample is run through a {@link ThermalPolicy}, which maps it to a
+ * degradation level with hysteresis (so a battery hovering around a threshold does not
+ * flap between levels).
+ * </p>
+ * The sensor is a {@link TemperatureSource}, so a fake one can drive {@link #sample()} in
+ * tests. Level changes are reported to a {@link Listener}.
+ */
 public class ThermalGuardian {
 
     private static final String TEMP_PATH = "/sys/class/power_supply/battery/temp";
-    private static final int MAX_TEMP = 450; // 45.0 degrees Celsius
 
-    public boolean isOverheating() {
-        File file = new File(TEMP_PATH);
-        if (!file.exists()) {
-            return false; // Cannot read, assume safe or handle error
+    public static final long POLL_INTERVAL_MS = 5000;
+
+    /** Temperature value when the sensor could not be read. */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    /** Battery temperature provider, in tenths of a degree Celsius. */
+    public interface TemperatureSource {
+        int readTemperature() throws IOException;
+    }
+
+    /** Reads the kernel's battery temperature file (e.g. "423" for 42.3 degrees). */
+    public static class SysfsTemperatureSource implements TemperatureSource {
+        private final File file;
+
+        public SysfsTemperatureSource(String path) {
+            this.file = new File(path);
         }
 
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new FileReader(file));
-            String line = reader.readLine();
-            if (line != null) {
-                int temp = Integer.parseInt(line.trim());
-                return temp > MAX_TEMP;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
+        @Override
+        public int readTemperature() throws IOException {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                if (line == null)
+                    throw new IOException("Empty " + file);
+                return Integer.parseInt(line.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Unreadable " + file + ": " + e.getMessage());
+            } finally {
+                reader.close();
             }
         }
-        return false;
     }
 
-    public static int getBatteryTemperature(android.content.Context context) {
-        File file = new File(TEMP_PATH);
-        if (!file.exists()) {
-            // Fallback to BatteryManager if file not found? For now just return -1 or 0
-            return 0;
+    /** Notified on the sampling thread when a sample moves the policy to another level. */
+    public interface Listener {
+        void onLevelChanged(int from, int to, int temperature);
+    }
+
+    /** One sample. Immutable, so readers always see a consistent snapshot. */
+    public static class Reading {
+        public final int temperature; // Tenths of a degree, or UNKNOWN
+        public final int level; // ThermalPolicy level
+        public final long time; // Epoch millis, 0 before the first sample
+
+        Reading(int temperature, int level, long time) {
+            this.temperature = temperature;
+            this.level = level;
+            this.time = time;
+        }
+    }
+
+    private final TemperatureSource source;
+    private final ThermalPolicy policy = new ThermalPolicy();
+    private volatile Reading reading = new Reading(UNKNOWN, ThermalPolicy.LEVEL_NORMAL, 0);
+    private Handler handler;
+    private volatile Listener listener;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            Handler h = handler;
+            if (h != null)
+                h.postDelayed(this, POLL_INTERVAL_MS);
+        }
+    };
+
+    public ThermalGuardian() {
+        this(new SysfsTemperatureSource(TEMP_PATH));
+    }
+
+    public ThermalGuardian(TemperatureSource source) {
+        this.source = source;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Samples now and then every {@link #POLL_INTERVAL_MS} on <code>handler</code>'s thread. */
+    public void start(Handler handler) {
+        stop();
+        this.handler = handler;
+        handler.post(poll);
+    }
+
+    public void stop() {
+        Handler h = handler;
+        handler = null;
+        if (h != null)
+            h.removeCallbacks(poll);
+    }
+
+    /**
+     * Reads the sensor once and publishes the result with its policy level. A failed read
+     * keeps the previous level (a sensor glitch neither starts nor ends a cool-down).
+     *
+     * @return the new reading.
+     */
+    public Reading sample() {
+        int temperature;
+        try {
+            temperature = source.readTemperature();
+        } catch (IOException e) {
+            temperature = UNKNOWN;
         }
-        BufferedReader reader = null;
+        Reading previous = reading;
+        Reading next = new Reading(temperature, policy.evaluate(temperature), System.currentTimeMillis());
+        reading = next;
+        Listener l = listener;
+        if (l != null && next.level != previous.level)
+            l.onLevelChanged(previous.level, next.level, temperature);
+        return next;
+    }
+
+    /** @return the current {@link ThermalPolicy} level. A field read, safe on the camera thread. */
+    public int getLevel() {
+        return reading.level;
+    }
+
+    /** The thresholds to configure; changes apply from the next sample. */
+    public ThermalPolicy getPolicy() {
+        return policy;
+    }
+
+    public Reading getReading() {
+        return reading;
+    }
+
+    /**
+     * @return whole degrees Celsius from the last sample, or 0 if unknown (the value shown
+     *         on the dashboard).
+     */
+    public int getTemperatureCelsius() {
+        int temperature = reading.temperature;
+        return temperature == UNKNOWN ? 0 : temperature / 10;
+    }
+
+    /** Reads the sensor directly; for callers without a running guardian. */
+    public static int getBatteryTemperature(android.content.Context context) {
         try {
-            reader = new BufferedReader(new FileReader(file));
-            String line = reader.readLine();
-            if (line != null) {
-                int tempRaw = Integer.parseInt(line.trim());
-                return tempRaw / 10; // Convert 420 -> 42
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                }
-            }
+            return new SysfsTemperatureSource(TEMP_PATH).readTemperature() / 10; // Convert 420 -> 42
+        } catch (IOException e) {
+            return 0;
         }
-        return 0;
     }
 }
@@ -0,0 +1,270 @@
+package com.elojodelabuelo;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Graduated response to battery temperature, replacing the old all-or-nothing cool-down.
+ * <p>
+ * <b>Ladder</b> (each level keeps the restrictions of the ones below):
+ * <ol start="0">
+ *     <li><b>normal</b>: no limits.</li>
+ *     <li><b>warm</b>: processing capped (default 8 fps).</li>
+ *     <li><b>hot</b>: a lower cap (default 4 fps) and lighter JPEGs (default quality
+ *     40).</li>
+ *     <li><b>very hot</b>: live stream paused (frames are only encoded for a recording),
+ *     recording continues at the lowest cap (default 2 fps).</li>
+ *     <li><b>critical</b>: image processing halted until it cools down.</li>
+ * </ol>
+ * An intruder on a hot afternoon is therefore still recorded, just at a lower rate.
+ * </p>
+ * <p>
+ * <b>Thresholds:</b> a level is entered above its threshold and left only below
+ * threshold minus the hysteresis (defaults 42/45/48/52 degrees, 5 degrees of hysteresis,
+ * i.e. the README's 45/40 for "hot"). Thresholds, hysteresis, the fps cap of each level
+ * and the hot JPEG quality are all configurable through the settings API.
+ * Every transition is kept in a short history for <code>/stats</code>, to tune the
+ * thresholds against real heat curves (and logged by the service through
+ * {@link ThermalGuardian.Listener}).
+ * </p>
+ * Pure Java, no Android calls, so it runs in JVM unit tests.
+ * Thread safe: evaluated on the housekeeping thread, configured from HTTP workers.
+ */
+public class ThermalPolicy {
+
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_WARM = 1;
+    public static final int LEVEL_HOT = 2;
+    public static final int LEVEL_VERY_HOT = 3;
+    public static final int LEVEL_CRITICAL = 4;
+    public static final int LEVELS = 5;
+
+    private static final String[] NAMES = { "normal", "warm", "hot", "veryHot", "critical" };
+
+    /** Processing caps of warm, hot and very hot (also critical), frames per second. */
+    private static final float[] DEFAULT_LEVEL_FPS = { 8, 4, 2 };
+    public static final int DEFAULT_HOT_JPEG_QUALITY = 40;
+
+    /** Entry thresholds of warm, hot, very hot and critical, tenths of a degree Celsius. */
+    public static final int[] DEFAULT_THRESHOLDS = { 420, 450, 480, 520 };
+    public static final int DEFAULT_HYSTERESIS = 50;
+
+    private static final int HISTORY_SIZE = 16;
+
+    /** One level change, for the transition log. */
+    private static class Transition {
+        final long time;
+        final int from;
+        final int to;
+        final int temperature;
+
+        Transition(long time, int from, int to, int temperature) {
+            this.time = time;
+            this.from = from;
+            this.to = to;
+            this.temperature = temperature;
+        }
+    }
+
+    private final int[] thresholds = DEFAULT_THRESHOLDS.clone(); // Guarded by this
+    private int hysteresis = DEFAULT_HYSTERESIS; // Guarded by this
+    // Read per frame on the camera and processing threads: replaced, never modified
+    private volatile float[] levelFps = DEFAULT_LEVEL_FPS.clone();
+    private volatile int hotJpegQuality = DEFAULT_HOT_JPEG_QUALITY;
+    private final ArrayDeque<Transition> history = new ArrayDeque<Transition>(); // Guarded by this
+    private volatile int level = LEVEL_NORMAL;
+
+    public static String nameOf(int level) {
+        return NAMES[level];
+    }
+
+    /**
+     * Replaces the whole ladder: thresholds take effect at the next {@link #evaluate},
+     * actions at the next frame. Nothing changes if any value is invalid.
+     *
+     * @param newThresholds Four ascending entry temperatures (warm, hot, very hot,
+     *                      critical) in tenths of a degree.
+     * @param newHysteresis Tenths of a degree below a threshold needed to leave its level.
+     * @param newLevelFps Processing caps of warm, hot and very hot, positive and not
+     *                    increasing.
+     * @param newHotJpegQuality JPEG quality from hot upwards, 1-100.
+     * @throws IllegalArgumentException if any value is out of range.
+     */
+    public synchronized void configure(int[] newThresholds, int newHysteresis, float[] newLevelFps,
+                                       int newHotJpegQuality) {
+        if (newThresholds.length != LEVELS - 1)
+            throw new IllegalArgumentException("Expected " + (LEVELS - 1) + " thresholds");
+        for (int i = 1; i < newThresholds.length; i++) {
+            if (newThresholds[i] <= newThresholds[i - 1])
+                throw new IllegalArgumentException("Thresholds must ascend");
+        }
+        if (newHysteresis < 0)
+            throw new IllegalArgumentException("Negative hysteresis");
+        if (newLevelFps.length != DEFAULT_LEVEL_FPS.length)
+            throw new IllegalArgumentException("Expected " + DEFAULT_LEVEL_FPS.length + " fps caps");
+        for (int i = 0; i < newLevelFps.length; i++) {
+            if (!(newLevelFps[i] > 0) || Float.isInfinite(newLevelFps[i]))
+                throw new IllegalArgumentException("Fps caps must be positive");
+            if (i > 0 && newLevelFps[i] > newLevelFps[i - 1])
+                throw new IllegalArgumentException("Fps caps must not increase with heat");
+        }
+        if (newHotJpegQuality < 1 || newHotJpegQuality > 100)
+            throw new IllegalArgumentException("JPEG quality must be 1-100");
+        System.arraycopy(newThresholds, 0, thresholds, 0, thresholds.length);
+        hysteresis = newHysteresis;
+        levelFps = newLevelFps.clone();
+        hotJpegQuality = newHotJpegQuality;
+    }
+
+    /**
+     * Moves up to the highest level whose threshold is exceeded, or down while the
+     * temperature is below the current level's threshold minus the hysteresis.
+     *
+     * @param temperature Tenths of a degree; {@link ThermalGuardian#UNKNOWN} keeps the level.
+     * @return the new level.
+     */
+    public synchronized int evaluate(int temperature) {
+        int current = level;
+        if (temperature == ThermalGuardian.UNKNOWN)
+            return current;
+        int next = current;
+        while (next < LEVEL_CRITICAL && temperature > thresholds[next])
+            next++;
+        if (next == current) {
+            while (next > LEVEL_NORMAL && temperature < thresholds[next - 1] - hysteresis)
+                next--;
+        }
+        if (next != current) {
+            level = next;
+            history.addLast(new Transition(System.currentTimeMillis(), current, next, temperature));
+            if (history.size() > HISTORY_SIZE)
+                history.removeFirst();
+        }
+        return next;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /** @return the processing rate cap for a level, {@link FrameRateGovernor#FULL_FPS} if none. */
+    public float maxFpsOf(int level) {
+        if (level <= LEVEL_NORMAL)
+            return FrameRateGovernor.FULL_FPS;
+        float[] fps = levelFps;
+        return fps[Math.min(level, fps.length) - 1]; // Critical keeps the very hot cap
+    }
+
+    /** @return the JPEG quality for recording and streaming at a level. */
+    public int streamQualityOf(int level) {
+        return level >= LEVEL_HOT ? hotJpegQuality : EncodedFrame.QUALITY_STREAM;
+    }
+
+    public static boolean isStreamPaused(int level) {
+        return level >= LEVEL_VERY_HOT;
+    }
+
+    public static boolean isHalted(int level) {
+        return level >= LEVEL_CRITICAL;
+    }
+
+    /** @return the thresholds in degrees, e.g. <code>"42,45,48,52"</code> (settings format). */
+    public synchronized String getThresholdsSpec() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < thresholds.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(formatTenths(thresholds[i]));
+        }
+        return sb.toString();
+    }
+
+    /** @return the hysteresis in degrees (settings format). */
+    public synchronized String getHysteresisSpec() {
+        return formatTenths(hysteresis);
+    }
+
+    /** @return the fps caps of warm, hot and very hot, e.g. <code>"8,4,2"</code> (settings format). */
+    public String getFpsSpec() {
+        float[] fps = levelFps;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fps.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(fps[i] == (int) fps[i] ? String.valueOf((int) fps[i]) : String.format(Locale.US, "%.1f", fps[i]));
+        }
+        return sb.toString();
+    }
+
+    public int getHotJpegQuality() {
+        return hotJpegQuality;
+    }
+
+    /** "45" for 450, "45.5" for 455. */
+    private static String formatTenths(int tenths) {
+        return tenths % 10 == 0 ? String.valueOf(tenths / 10) : String.format(Locale.US, "%.1f", tenths / 10f);
+    }
+
+    /**
+     * Parses a settings value in degrees ("45" or "45.5") to tenths.
+     *
+     * @throws NumberFormatException if malformed.
+     */
+    public static int parseTenths(String degrees) {
+        return Math.round(Float.parseFloat(degrees.trim()) * 10);
+    }
+
+    /**
+     * Parses <code>"42,45,48,52"</code> (degrees) into tenths.
+     *
+     * @throws NumberFormatException if malformed.
+     */
+    public static int[] parseThresholds(String spec) {
+        String[] parts = spec.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = parseTenths(parts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Parses <code>"8,4,2"</code> (fps caps of warm, hot and very hot).
+     *
+     * @throws NumberFormatException if malformed.
+     */
+    public static float[] parseFps(String spec) {
+        String[] parts = spec.split(",");
+        float[] result = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Float.parseFloat(parts[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Policy state as JSON: <code>{"level":N, "name":"...", "thresholds":"42,45,48,52",
+     * "hysteresis":"5", "fps":"8,4,2", "hotQuality":40, "transitions":[{"time":ms, "from":"...", "to":"...",
+     * "temp":F}, ...]}</code> (oldest transition first).
+     */
+    public synchronized String getStatsJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"level\":").append(level)
+                .append(", \"name\":\"").append(NAMES[level])
+                .append("\", \"thresholds\":\"").append(getThresholdsSpec())
+                .append("\", \"hysteresis\":\"").append(getHysteresisSpec())
+                .append("\", \"fps\":\"").append(getFpsSpec())
+                .append("\", \"hotQuality\":").append(hotJpegQuality)
+                .append(", \"transitions\":[");
+        boolean first = true;
+        for (Transition t : history) {
+            if (!first)
+                sb.append(", ");
+            first = false;
+            sb.append(String.format(Locale.US, "{\"time\":%d, \"from\":\"%s\", \"to\":\"%s\", \"temp\":%.1f}",
+                    t.time, NAMES[t.from], NAMES[t.to], t.temperature / 10f));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+}
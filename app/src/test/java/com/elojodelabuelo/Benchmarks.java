@@ -0,0 +1,70 @@
+package com.elojodelabuelo;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Minimal timing helpers for the <code>*Benchmark</code> tests.
+ * <p>
+ * Benchmarks are skipped by default so <code>./gradlew test</code> stays fast. Run them
+ * with:
+ * <pre>
+ * ./gradlew testDebugUnitTest -Pbenchmark=true --tests '*Benchmark'
+ * </pre>
+ * Figures come from the build machine's JVM, not the phone's ART: compare the variants
+ * against each other, not against frame budgets on the device.
+ * </p>
+ */
+final class Benchmarks {
+
+    static final boolean ENABLED = Boolean.getBoolean("benchmark");
+
+    private static final int ROUNDS = 5;
+
+    /** Results are stored here so the JIT cannot drop the measured work. */
+    static volatile long sink;
+
+    private Benchmarks() {
+    }
+
+    /** Skips the calling test unless benchmarks were requested. */
+    static void assumeEnabled() {
+        Assume.assumeTrue("Run with -Pbenchmark=true", ENABLED);
+    }
+
+    /**
+     * Runs <code>op</code> <code>warmup</code> times untimed, then {@link #ROUNDS} rounds
+     * of <code>runs</code> times.
+     *
+     * @return average wall-clock nanoseconds per run of the fastest round (the one least
+     *         disturbed by JIT compilation, GC and other processes).
+     */
+    static double nanosPerRun(Runnable op, int warmup, int runs) {
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                op.run();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / (double) runs;
+    }
+
+    /** @return CPU time used so far by the calling thread, or -1 if the JVM cannot tell. */
+    static long threadCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    static void report(String name, double nanosPerRun, String detail) {
+        System.out.println(String.format(Locale.US, "%-40s %10.1f us/op  %s",
+                name, nanosPerRun / 1000.0, detail));
+    }
+}
@@ -0,0 +1,159 @@
+package com.elojodelabuelo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Recording download over loopback: {@link NanoHttpServer.FileSegment} (transferTo)
+ * against the 8 KB read/write loop it replaced. Reports throughput and the CPU time of the
+ * sending thread, the one that competes with the camera pipeline. Skipped unless run
+ * with <code>-Pbenchmark=true</code> (see {@link Benchmarks}).
+ */
+public class FileSegmentBenchmark {
+
+    private static final int[] SIZES_MB = { 1, 16, 64 };
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    private ServerSocketChannel server;
+    private Thread drain;
+    private final Semaphore received = new Semaphore(0);
+    private volatile long lastReceived;
+
+    /** Accepts one connection at a time and reads it to the end, like a browser download. */
+    @Before
+    public void startDrain() throws IOException {
+        Benchmarks.assumeEnabled();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    while (true) {
+                        SocketChannel client = server.accept();
+                        long total = 0;
+                        int n;
+                        while ((n = client.read(sink)) >= 0) {
+                            total += n;
+                            sink.clear();
+                        }
+                        client.close();
+                        lastReceived = total;
+                        received.release();
+                    }
+                } catch (IOException e) {
+                    // Server closed
+                }
+            }
+        }, "FileSegmentBenchmark-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @After
+    public void stopDrain() throws Exception {
+        if (server == null)
+            return; // Skipped
+        server.close();
+        drain.join(1000);
+    }
+
+    @Test
+    public void transferToVersusCopyLoop() throws Exception {
+        for (int sizeMb : SIZES_MB) {
+            File file = createFile(sizeMb);
+            try {
+                measure("8 KB loop " + sizeMb + " MB", file, false);
+                measure("transferTo " + sizeMb + " MB", file, true);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private void measure(String name, File file, boolean zeroCopy) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            send(file, zeroCopy);
+        }
+        long wall = 0;
+        long cpu = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long cpuStart = Benchmarks.threadCpuNanos();
+            long start = System.nanoTime();
+            send(file, zeroCopy);
+            wall += System.nanoTime() - start;
+            cpu += Benchmarks.threadCpuNanos() - cpuStart;
+        }
+        double nanos = wall / (double) RUNS;
+        Benchmarks.report(name, nanos, String.format(Locale.US, "%.0f MB/s, sender CPU %.1f ms/op",
+                file.length() * 1000.0 / nanos, cpu / 1e6 / RUNS));
+    }
+
+    /** Sends the whole file over a fresh connection and waits until it has been read. */
+    private void send(File file, boolean zeroCopy) throws Exception {
+        SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        try {
+            if (zeroCopy) {
+                NanoHttpServer.FileSegment segment = new NanoHttpServer.FileSegment(file, 0, file.length());
+                try {
+                    while (!segment.writeTo(channel)) {
+                        Thread.yield(); // Blocking channel: only a zero-length write lands here
+                    }
+                } finally {
+                    segment.close();
+                }
+            } else {
+                // The loop the server used before FileSegment
+                FileInputStream fis = new FileInputStream(file);
+                OutputStream os = channel.socket().getOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = fis.read(buf)) > 0) {
+                    os.write(buf, 0, len);
+                }
+                fis.close();
+                os.flush();
+            }
+            channel.shutdownOutput();
+            received.acquire();
+            assertEquals(file.length(), lastReceived);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static File createFile(int sizeMb) throws IOException {
+        File file = File.createTempFile("segment", ".mp4");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(sizeMb).nextBytes(chunk);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < sizeMb; i++) {
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,100 @@
+package com.elojodelabuelo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the pool reaches a steady state: once every buffer has held the largest
+ * frame, encode cycles neither create buffers nor grow them.
+ */
+public class JpegBufferPoolTest {
+
+    private static final long SEED = 0x1BE6L;
+
+    /** Frames held at once: the encoder's output, a cached tier and two stream viewers. */
+    private static final int MAX_IN_USE = 4;
+
+    /** Above the initial capacity, so warm-up has to grow every buffer. */
+    private static final int MAX_FRAME = 60 * 1024;
+
+    private static final int CYCLES = 20000;
+
+    @Test
+    public void countersStayFlatAfterWarmUp() {
+        JpegBufferPool pool = new JpegBufferPool();
+        Random random = new Random(SEED);
+        byte[] jpeg = new byte[MAX_FRAME];
+        random.nextBytes(jpeg);
+
+        // Warm-up: every buffer the pool will need holds a largest frame once
+        List<JpegBufferPool.JpegBuffer> held = new ArrayList<JpegBufferPool.JpegBuffer>();
+        for (int i = 0; i < MAX_IN_USE; i++) {
+            JpegBufferPool.JpegBuffer buffer = pool.acquire();
+            encode(buffer, jpeg, MAX_FRAME, random);
+            held.add(buffer);
+        }
+        for (JpegBufferPool.JpegBuffer buffer : held) {
+            buffer.release();
+        }
+        held.clear();
+        int allocated = pool.getAllocated();
+        int grows = pool.getGrows();
+        assertEquals(MAX_IN_USE, allocated);
+
+        for (int n = 0; n < CYCLES; n++) {
+            JpegBufferPool.JpegBuffer buffer = pool.acquire();
+            int length = 1 + random.nextInt(MAX_FRAME);
+            encode(buffer, jpeg, length, random);
+            assertEquals(length, buffer.getLength());
+            if (random.nextBoolean()) {
+                held.add(buffer.retain()); // A second consumer, e.g. a stream viewer
+                buffer.release();
+            } else {
+                held.add(buffer);
+            }
+            // Consumers finish in any order, never more than MAX_IN_USE frames alive
+            if (held.size() == MAX_IN_USE || random.nextInt(3) == 0)
+                held.remove(random.nextInt(held.size())).release();
+        }
+        for (JpegBufferPool.JpegBuffer buffer : held) {
+            buffer.release();
+        }
+
+        assertEquals("allocated", allocated, pool.getAllocated());
+        assertEquals("grows", grows, pool.getGrows());
+        assertEquals("inUse", 0, pool.getInUse());
+    }
+
+    @Test
+    public void recycledBufferStartsEmpty() {
+        JpegBufferPool pool = new JpegBufferPool();
+        JpegBufferPool.JpegBuffer buffer = pool.acquire();
+        buffer.write(new byte[] { 1, 2, 3 }, 0, 3);
+        buffer.release();
+
+        JpegBufferPool.JpegBuffer again = pool.acquire();
+        assertEquals(0, again.getLength());
+        again.write(7);
+        assertEquals(1, again.getLength());
+        assertArrayEquals(new byte[] { 7 }, Arrays.copyOf(again.getData(), 1));
+        again.release();
+    }
+
+    /** Writes like an encoder: a marker byte, then chunks of varying size. */
+    private static void encode(JpegBufferPool.JpegBuffer buffer, byte[] jpeg, int length, Random random) {
+        buffer.write(jpeg[0]);
+        int written = 1;
+        while (written < length) {
+            int chunk = Math.min(length - written, 1 + random.nextInt(8192));
+            buffer.write(jpeg, written, chunk);
+            written += chunk;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.elojodelabuelo;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Frame-difference cost per frame: the detector's full and idle scans against the plain
+ * stride loop it started from (same lattice, same grid, same reference copy). Skipped unless run with
+ * <code>-Pbenchmark=true</code> (see {@link Benchmarks}).
+ */
+public class MotionDetectorBenchmark {
+
+    private static final int[][] SIZES = { { 352, 288 }, { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+
+    // Mirrors MotionDetector's lattice and pixel threshold
+    private static final int STRIDE = 10;
+    private static final int THRESHOLD = 50;
+
+    private static final int WARMUP = 1000;
+    private static final int RUNS = 500;
+
+    @Test
+    public void frameDiff() {
+        Benchmarks.assumeEnabled();
+        Random random = new Random(1);
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            String label = width + "x" + height;
+
+            // Sensor noise with a little motion: the common idle case
+            final byte[][] frames = MotionDetectorTest.framePair(random, width, height, 1);
+            final MotionMask.Compiled spans = MotionMask.NONE.compile(width, height);
+            final MotionGrid grid = new MotionGrid();
+
+            final byte[] reference = new byte[width * height];
+            final int[] colOfX = new int[width];
+            for (int x = 0; x < width; x++) {
+                colOfX[x] = x * grid.cols / width;
+            }
+            double baseline = Benchmarks.nanosPerRun(new Runnable() {
+                private boolean odd;
+
+                @Override
+                public void run() {
+                    odd = !odd;
+                    Benchmarks.sink += strideScore(odd ? frames[0] : frames[1], reference, width, height,
+                            spans, colOfX, grid);
+                }
+            }, WARMUP, RUNS);
+            Benchmarks.report("stride loop " + label, baseline, "");
+
+            double full = Benchmarks.nanosPerRun(
+                    alternating(new MotionDetector(), frames[0], frames[1], width, height, grid, -1),
+                    WARMUP, RUNS);
+            Benchmarks.report("detector full " + label, full,
+                    String.format(Locale.US, "x%.2f", baseline / full));
+
+            // Idle at the default sensitivity's threshold, on a noisy static scene
+            byte[] still = MotionDetectorTest.noisyCopy(random, frames[0], width, height);
+            double idle = Benchmarks.nanosPerRun(
+                    alternating(new MotionDetector(), frames[0], still, width, height, grid, 100),
+                    WARMUP, RUNS);
+            Benchmarks.report("detector idle static " + label, idle,
+                    String.format(Locale.US, "x%.2f", baseline / idle));
+        }
+    }
+
+    /**
+     * The plain stride loop the detector ran before packing: one sample every STRIDE
+     * bytes, same grid accumulation, same copy of the luminance plane as the reference.
+     */
+    static int strideScore(byte[] current, byte[] previous, int width, int height,
+                           MotionMask.Compiled spans, int[] colOfX, MotionGrid grid) {
+        int[] cells = grid.cells;
+        grid.clear();
+        int diffCount = 0;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            int cellBase = (y * grid.rows / height) * grid.cols;
+            for (int s = spans.rowStart[y]; s < spans.rowStart[y + 1]; s++) {
+                int spanEnd = rowStart + spans.spanTo[s];
+                int first = (rowStart + spans.spanFrom[s] + STRIDE - 1) / STRIDE * STRIDE;
+                for (int i = first; i < spanEnd; i += STRIDE) {
+                    if (Math.abs((current[i] & 0xFF) - (previous[i] & 0xFF)) > THRESHOLD) {
+                        cells[cellBase + colOfX[i - rowStart]]++;
+                        diffCount++;
+                    }
+                }
+            }
+        }
+        System.arraycopy(current, 0, previous, 0, width * height);
+        return diffCount;
+    }
+
+    /** Scores <code>a</code> and <code>b</code> in turn, so every call compares the pair. */
+    private static Runnable alternating(final MotionDetector detector, final byte[] a, final byte[] b,
+                                        final int width, final int height, final MotionGrid grid,
+                                        final int threshold) {
+        detector.detect(b, width, height, grid);
+        return new Runnable() {
+            private boolean odd;
+
+            @Override
+            public void run() {
+                odd = !odd;
+                Benchmarks.sink += detector.detect(odd ? a : b, width, height, grid, threshold,
+                        threshold < 0 ? -1 : FrameRateGovernor.holdLevel(threshold));
+            }
+        };
+    }
+}
@@ -0,0 +1,242 @@
+package com.elojodelabuelo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the span-walking frame-difference scan against a plain per-pixel reference, on
+ * seeded random frames: full scans must match score and grid exactly, early-exit scans
+ * must take the same threshold decisions and stop sooner.
+ */
+public class MotionDetectorTest {
+
+    private static final long SEED = 0x5EED1E55L;
+
+    // Mirrors MotionDetector's lattice and pixel threshold
+    private static final int STRIDE = 10;
+    private static final int THRESHOLD = 50;
+
+    /** Odd sizes put lattice samples at every offset in a row. */
+    private static final int[][] SIZES = { { 173, 97 }, { 176, 144 }, { 352, 288 }, { 641, 479 } };
+
+    private static final String MASK = "10,10,30,40;55,0,20,100;0,90,100,10";
+
+    private static final int FRAMES_PER_SIZE = 40;
+
+    /**
+     * Reads every visible pixel and keeps the lattice ones: slow, but shares no logic with
+     * the detector's span and sample arithmetic.
+     *
+     * @param cells Receives the per-cell counts (<code>cols * rows</code>, cleared first).
+     * @return changed-sample count.
+     */
+    static int referenceScore(byte[] previous, byte[] current, int width, int height,
+                              MotionMask.Compiled spans, int cols, int rows, int[] cells) {
+        Arrays.fill(cells, 0);
+        int total = 0;
+        for (int y = 0; y < height; y++) {
+            for (int s = spans.rowStart[y]; s < spans.rowStart[y + 1]; s++) {
+                for (int x = spans.spanFrom[s]; x < spans.spanTo[s]; x++) {
+                    int i = y * width + x;
+                    if (i % STRIDE != 0)
+                        continue;
+                    if (Math.abs((current[i] & 0xFF) - (previous[i] & 0xFF)) > THRESHOLD) {
+                        cells[(y * rows / height) * cols + x * cols / width]++;
+                        total++;
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Random previous frame and a current frame where <code>changedPercent</code> of the
+     * pixels get new values and as many again land right on the threshold (a difference
+     * of exactly 50 or 51, either sign).
+     */
+    static byte[][] framePair(Random random, int width, int height, int changedPercent) {
+        byte[] previous = new byte[width * height * 3 / 2];
+        random.nextBytes(previous);
+        byte[] current = previous.clone();
+        for (int i = 0; i < width * height; i++) {
+            int roll = random.nextInt(100);
+            if (roll < changedPercent) {
+                current[i] = (byte) random.nextInt(256);
+            } else if (roll < 2 * changedPercent) {
+                int delta = THRESHOLD + random.nextInt(2);
+                int value = (previous[i] & 0xFF) + (random.nextBoolean() ? delta : -delta);
+                if (value >= 0 && value <= 255)
+                    current[i] = (byte) value;
+            }
+        }
+        return new byte[][] { previous, current };
+    }
+
+    /** A static scene as the sensor delivers it: noise well under the pixel threshold. */
+    static byte[] noisyCopy(Random random, byte[] scene, int width, int height) {
+        byte[] frame = scene.clone();
+        for (int i = 0; i < width * height; i++) {
+            int value = (scene[i] & 0xFF) + random.nextInt(21) - 10;
+            frame[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        return frame;
+    }
+
+    @Test
+    public void fullScanMatchesReference() {
+        checkFullScan(MotionMask.NONE, new MotionGrid());
+    }
+
+    @Test
+    public void fullScanMatchesReferenceWithMask() {
+        checkFullScan(MotionMask.parse(MASK), new MotionGrid());
+    }
+
+    @Test
+    public void fullScanMatchesReferenceOnOddGrid() {
+        checkFullScan(MotionMask.parse(MASK), new MotionGrid(7, 5));
+    }
+
+    @Test
+    public void earlyExitKeepsDecisions() {
+        checkEarlyExit(MotionMask.NONE);
+    }
+
+    @Test
+    public void earlyExitKeepsDecisionsWithMask() {
+        checkEarlyExit(MotionMask.parse(MASK));
+    }
+
+    @Test
+    public void earlyExitSeesSingleChangedRow() {
+        // A change one row high, far from the first rows scanned
+        int width = 352;
+        int height = 288;
+        byte[] previous = new byte[width * height * 3 / 2];
+        byte[] current = previous.clone();
+        for (int x = 0; x < width; x++) {
+            current[101 * width + x] = (byte) 200;
+        }
+        MotionDetector detector = new MotionDetector();
+        MotionGrid grid = new MotionGrid();
+        detector.detect(previous, width, height, grid, 10, 5);
+        int score = detector.detect(current, width, height, grid, 10, 5);
+        assertTrue("score " + score, score > 10);
+    }
+
+    @Test
+    public void idleScanReadsFewerSamplesOnStaticScene() {
+        // Thresholds the service derives from sensitivity 90 (default) and 50
+        checkStaticScene(100, 0); // Only the last row can be skipped
+        checkStaticScene(2500, 10);
+    }
+
+    /**
+     * @param minSavedPercent Share of the full scan's samples the idle scan must skip
+     *                        beyond at least one: on a static scene it can skip about
+     *                        half the threshold's worth of samples.
+     */
+    private void checkStaticScene(int threshold, int minSavedPercent) {
+        int width = 352;
+        int height = 288;
+        Random random = new Random(SEED);
+        MotionDetector full = new MotionDetector();
+        MotionDetector idle = new MotionDetector();
+        MotionGrid grid = new MotionGrid();
+        byte[] scene = new byte[width * height * 3 / 2];
+        random.nextBytes(scene);
+        for (int n = 0; n < 10; n++) {
+            byte[] frame = noisyCopy(random, scene, width, height);
+            full.detect(frame, width, height, grid);
+            idle.detect(frame, width, height, grid, threshold, FrameRateGovernor.holdLevel(threshold));
+        }
+        String where = "threshold " + threshold + ": idle " + idle.getSamplesScanned() + " vs full "
+                + full.getSamplesScanned();
+        assertEquals(where, 9, idle.getEarlyExits()); // Every frame after the first
+        assertTrue(where, idle.getSamplesScanned() * 100 < full.getSamplesScanned() * (100 - minSavedPercent));
+    }
+
+    @Test
+    public void idleScanStopsSoonOnMotion() {
+        int width = 352;
+        int height = 288;
+        byte[][] frames = framePair(new Random(SEED), width, height, 30);
+        MotionDetector full = new MotionDetector();
+        MotionDetector idle = new MotionDetector();
+        MotionGrid grid = new MotionGrid();
+        full.detect(frames[0], width, height, grid);
+        idle.detect(frames[0], width, height, grid, 50, 25);
+        long fullBefore = full.getSamplesScanned();
+        long idleBefore = idle.getSamplesScanned();
+        assertTrue(full.detect(frames[1], width, height, grid) > 50);
+        assertTrue(idle.detect(frames[1], width, height, grid, 50, 25) > 50);
+        long fullSamples = full.getSamplesScanned() - fullBefore;
+        long idleSamples = idle.getSamplesScanned() - idleBefore;
+        assertTrue("idle " + idleSamples + " vs full " + fullSamples, idleSamples * 10 < fullSamples);
+    }
+
+    private void checkFullScan(MotionMask mask, MotionGrid grid) {
+        Random random = new Random(SEED);
+        int[] expected = new int[grid.cells.length];
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            MotionMask.Compiled spans = mask.compile(width, height);
+            for (int n = 0; n < FRAMES_PER_SIZE; n++) {
+                byte[][] frames = framePair(random, width, height, n % 20);
+                int total = referenceScore(frames[0], frames[1], width, height, spans,
+                        grid.cols, grid.rows, expected);
+
+                MotionDetector detector = new MotionDetector();
+                detector.setMask(mask);
+                detector.detect(frames[0], width, height, grid);
+                int score = detector.detect(frames[1], width, height, grid);
+
+                String where = width + "x" + height + " frame " + n;
+                assertEquals(where, total, score);
+                assertEquals(where, total, grid.total);
+                assertArrayEquals(where, expected, grid.cells);
+            }
+        }
+    }
+
+    private void checkEarlyExit(MotionMask mask) {
+        Random random = new Random(SEED);
+        MotionGrid grid = new MotionGrid();
+        int[] expected = new int[grid.cells.length];
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            MotionMask.Compiled spans = mask.compile(width, height);
+            for (int n = 0; n < FRAMES_PER_SIZE; n++) {
+                // Sparse changes keep the exact score near the thresholds
+                byte[][] frames = framePair(random, width, height, n % 4);
+                int total = referenceScore(frames[0], frames[1], width, height, spans,
+                        grid.cols, grid.rows, expected);
+                int threshold = random.nextInt(Math.max(2 * total, 20));
+                int hold = threshold / 2;
+
+                MotionDetector detector = new MotionDetector();
+                detector.setMask(mask);
+                detector.detect(frames[0], width, height, grid, threshold, hold);
+                int score = detector.detect(frames[1], width, height, grid, threshold, hold);
+
+                String where = width + "x" + height + " frame " + n + " exact " + total
+                        + " threshold " + threshold + " got " + score;
+                assertEquals(where, total > threshold, score > threshold);
+                assertEquals(where, total > hold, score > hold);
+                assertTrue(where, score <= total);
+                for (int c = 0; c < expected.length; c++) {
+                    assertTrue(where + " cell " + c, grid.cells[c] <= expected[c]);
+                }
+            }
+        }
+    }
+}
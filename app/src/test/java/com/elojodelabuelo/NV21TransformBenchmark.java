@@ -0,0 +1,55 @@
+package com.elojodelabuelo;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Cost of each rotation and flip, whole frame, against the per-pixel forward-mapping
+ * reference of {@link NV21TransformTest}. Skipped unless run with
+ * <code>-Pbenchmark=true</code> (see {@link Benchmarks}).
+ */
+public class NV21TransformBenchmark {
+
+    private static final int[][] SIZES = { { 352, 288 }, { 640, 480 }, { 1280, 720 } };
+
+    private static final int WARMUP = 300;
+    private static final int RUNS = 300;
+
+    @Test
+    public void transforms() {
+        Benchmarks.assumeEnabled();
+        Random random = new Random(1);
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final byte[] src = NV21TransformTest.randomFrame(random, width, height);
+            final byte[] dst = new byte[src.length];
+            for (final int rotation : NV21TransformTest.ROTATIONS) {
+                final int flip = NV21Transform.FLIP_NONE;
+                double reference = Benchmarks.nanosPerRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        Benchmarks.sink += NV21TransformTest.reference(src, width, height, rotation, flip,
+                                0, 0, width, height)[0];
+                    }
+                }, WARMUP / 10, RUNS / 10);
+                Benchmarks.report("reference " + width + "x" + height + " r" + rotation, reference, "");
+
+                for (int f : NV21TransformTest.FLIPS) {
+                    final NV21Transform transform = new NV21Transform(width, height, rotation, f);
+                    double nanos = Benchmarks.nanosPerRun(new Runnable() {
+                        @Override
+                        public void run() {
+                            transform.apply(src, dst);
+                            Benchmarks.sink += dst[0];
+                        }
+                    }, WARMUP, RUNS);
+                    Benchmarks.report("transform " + width + "x" + height + " r" + rotation + " f" + f, nanos,
+                            String.format(Locale.US, "%.0f MB/s", src.length * 1000.0 / nanos));
+                }
+            }
+        }
+    }
+}
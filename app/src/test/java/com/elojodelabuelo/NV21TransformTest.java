@@ -0,0 +1,153 @@
+package com.elojodelabuelo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks every rotation and flip, on random even crops, against a reference that maps
+ * each source pixel forward to its output position (the transform itself walks the other
+ * way, from output to source).
+ */
+public class NV21TransformTest {
+
+    private static final long SEED = 0x0F11BL;
+
+    static final int[] ROTATIONS = { 0, 90, 180, 270 };
+    static final int[] FLIPS = { NV21Transform.FLIP_NONE, NV21Transform.FLIP_HORIZONTAL,
+            NV21Transform.FLIP_VERTICAL, NV21Transform.FLIP_HORIZONTAL | NV21Transform.FLIP_VERTICAL };
+
+    /** Even sizes that are not multiples of the 32-pixel tile leave partial tiles on the edges. */
+    private static final int[][] SIZES = { { 2, 2 }, { 98, 62 }, { 176, 144 }, { 352, 288 } };
+
+    private static final int CROPS_PER_SIZE = 12;
+
+    /**
+     * Forward mapping: output position of crop-local pixel (x, y) of a <code>w</code> x
+     * <code>h</code> picture, rotated clockwise then flipped as seen on screen.
+     *
+     * @return <code>{ox, oy}</code>.
+     */
+    static int[] targetOf(int x, int y, int rotation, int flip, int w, int h) {
+        int ox;
+        int oy;
+        switch (rotation) {
+            case 90:
+                ox = h - 1 - y;
+                oy = x;
+                break;
+            case 180:
+                ox = w - 1 - x;
+                oy = h - 1 - y;
+                break;
+            case 270:
+                ox = y;
+                oy = w - 1 - x;
+                break;
+            default:
+                ox = x;
+                oy = y;
+        }
+        boolean swap = rotation == 90 || rotation == 270;
+        if ((flip & NV21Transform.FLIP_HORIZONTAL) != 0)
+            ox = (swap ? h : w) - 1 - ox;
+        if ((flip & NV21Transform.FLIP_VERTICAL) != 0)
+            oy = (swap ? w : h) - 1 - oy;
+        return new int[] { ox, oy };
+    }
+
+    /** Per-pixel reference: Y plane byte by byte, VU plane pair by pair at half size. */
+    static byte[] reference(byte[] src, int width, int height, int rotation, int flip,
+                            int cropX, int cropY, int cropWidth, int cropHeight) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? cropHeight : cropWidth;
+        int outHeight = swap ? cropWidth : cropHeight;
+        byte[] dst = new byte[outWidth * outHeight * 3 / 2];
+        for (int y = 0; y < cropHeight; y++) {
+            for (int x = 0; x < cropWidth; x++) {
+                int[] o = targetOf(x, y, rotation, flip, cropWidth, cropHeight);
+                dst[o[1] * outWidth + o[0]] = src[(cropY + y) * width + cropX + x];
+            }
+        }
+        int srcChroma = width * height;
+        int dstChroma = outWidth * outHeight;
+        for (int y = 0; y < cropHeight / 2; y++) {
+            for (int x = 0; x < cropWidth / 2; x++) {
+                int[] o = targetOf(x, y, rotation, flip, cropWidth / 2, cropHeight / 2);
+                int s = srcChroma + (cropY / 2 + y) * width + (cropX / 2 + x) * 2;
+                int d = dstChroma + o[1] * outWidth + o[0] * 2;
+                dst[d] = src[s]; // V
+                dst[d + 1] = src[s + 1]; // U
+            }
+        }
+        return dst;
+    }
+
+    @Test
+    public void wholeFrameMatchesReference() {
+        Random random = new Random(SEED);
+        for (int[] size : SIZES) {
+            byte[] src = randomFrame(random, size[0], size[1]);
+            for (int rotation : ROTATIONS) {
+                for (int flip : FLIPS) {
+                    check(src, size[0], size[1], rotation, flip, 0, 0, size[0], size[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomCropsMatchReference() {
+        Random random = new Random(SEED);
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] src = randomFrame(random, width, height);
+            for (int n = 0; n < CROPS_PER_SIZE; n++) {
+                int cropWidth = 2 + 2 * random.nextInt(width / 2);
+                int cropHeight = 2 + 2 * random.nextInt(height / 2);
+                int cropX = 2 * random.nextInt((width - cropWidth) / 2 + 1);
+                int cropY = 2 * random.nextInt((height - cropHeight) / 2 + 1);
+                for (int rotation : ROTATIONS) {
+                    for (int flip : FLIPS) {
+                        check(src, width, height, rotation, flip, cropX, cropY, cropWidth, cropHeight);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void identityOnlyWithoutRotationFlipOrCrop() {
+        assertTrue(new NV21Transform(352, 288, 0, NV21Transform.FLIP_NONE).isIdentity());
+        assertTrue(!new NV21Transform(352, 288, 0, NV21Transform.FLIP_VERTICAL).isIdentity());
+        assertTrue(!new NV21Transform(352, 288, 180, NV21Transform.FLIP_NONE).isIdentity());
+        assertTrue(!new NV21Transform(352, 288, 0, NV21Transform.FLIP_NONE, 0, 0, 350, 288).isIdentity());
+    }
+
+    private static void check(byte[] src, int width, int height, int rotation, int flip,
+                              int cropX, int cropY, int cropWidth, int cropHeight) {
+        NV21Transform transform = new NV21Transform(width, height, rotation, flip,
+                cropX, cropY, cropWidth, cropHeight);
+        byte[] expected = reference(src, width, height, rotation, flip, cropX, cropY, cropWidth, cropHeight);
+        byte[] dst = new byte[transform.getOutputSize()];
+        transform.apply(src, dst);
+
+        String where = width + "x" + height + " crop " + cropX + "," + cropY + " " + cropWidth + "x"
+                + cropHeight + " rotation " + rotation + " flip " + flip;
+        boolean swap = rotation == 90 || rotation == 270;
+        assertEquals(where, swap ? cropHeight : cropWidth, transform.getOutputWidth());
+        assertEquals(where, swap ? cropWidth : cropHeight, transform.getOutputHeight());
+        assertArrayEquals(where, expected, dst);
+    }
+
+    static byte[] randomFrame(Random random, int width, int height) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        random.nextBytes(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,187 @@
+package com.elojodelabuelo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Walks the ladder with the default thresholds (42/45/48/52 degrees, 5 degrees of
+ * hysteresis, all in tenths), directly and through a {@link ThermalGuardian} driven by a
+ * fake {@link ThermalGuardian.TemperatureSource}.
+ */
+public class ThermalPolicyTest {
+
+    private static final int[] THRESHOLDS = ThermalPolicy.DEFAULT_THRESHOLDS;
+    private static final int HYSTERESIS = ThermalPolicy.DEFAULT_HYSTERESIS;
+
+    private static final float DELTA = 1e-6f;
+
+    /** Fake sensor value that throws instead of returning. */
+    private static final int FAILED = -1;
+
+    @Test
+    public void entersAboveEachThreshold() {
+        for (int level = ThermalPolicy.LEVEL_WARM; level <= ThermalPolicy.LEVEL_CRITICAL; level++) {
+            ThermalPolicy policy = policyAt(level - 1);
+            int threshold = THRESHOLDS[level - 1];
+            assertEquals("at " + threshold, level - 1, policy.evaluate(threshold));
+            assertEquals("above " + threshold, level, policy.evaluate(threshold + 1));
+        }
+    }
+
+    @Test
+    public void leavesOnlyBelowThresholdMinusHysteresis() {
+        for (int level = ThermalPolicy.LEVEL_WARM; level <= ThermalPolicy.LEVEL_CRITICAL; level++) {
+            ThermalPolicy policy = policyAt(level);
+            int exit = THRESHOLDS[level - 1] - HYSTERESIS;
+            // Anywhere between the exit point and the threshold holds the level
+            assertEquals("at threshold", level, policy.evaluate(THRESHOLDS[level - 1]));
+            assertEquals("at " + exit, level, policy.evaluate(exit));
+            assertEquals("below " + exit, level - 1, policy.evaluate(exit - 1));
+        }
+    }
+
+    @Test
+    public void jumpsSeveralLevelsAtOnce() {
+        ThermalPolicy policy = new ThermalPolicy();
+        assertEquals(ThermalPolicy.LEVEL_CRITICAL, policy.evaluate(THRESHOLDS[3] + 1));
+        assertEquals(ThermalPolicy.LEVEL_NORMAL, policy.evaluate(THRESHOLDS[0] - HYSTERESIS - 1));
+    }
+
+    @Test
+    public void unknownKeepsTheCurrentLevel() {
+        for (int level = ThermalPolicy.LEVEL_NORMAL; level <= ThermalPolicy.LEVEL_CRITICAL; level++) {
+            ThermalPolicy policy = policyAt(level);
+            assertEquals(level, policy.evaluate(ThermalGuardian.UNKNOWN));
+            assertEquals(level, policy.getLevel());
+        }
+    }
+
+    @Test
+    public void defaultActionsPerLevel() {
+        ThermalPolicy policy = new ThermalPolicy();
+        float[] fps = { FrameRateGovernor.FULL_FPS, 8, 4, 2, 2 };
+        int[] quality = { EncodedFrame.QUALITY_STREAM, EncodedFrame.QUALITY_STREAM,
+                ThermalPolicy.DEFAULT_HOT_JPEG_QUALITY, ThermalPolicy.DEFAULT_HOT_JPEG_QUALITY,
+                ThermalPolicy.DEFAULT_HOT_JPEG_QUALITY };
+        for (int level = ThermalPolicy.LEVEL_NORMAL; level <= ThermalPolicy.LEVEL_CRITICAL; level++) {
+            String name = ThermalPolicy.nameOf(level);
+            assertEquals(name, fps[level], policy.maxFpsOf(level), DELTA);
+            assertEquals(name, quality[level], policy.streamQualityOf(level));
+            assertEquals(name, level >= ThermalPolicy.LEVEL_VERY_HOT, ThermalPolicy.isStreamPaused(level));
+            assertEquals(name, level >= ThermalPolicy.LEVEL_CRITICAL, ThermalPolicy.isHalted(level));
+        }
+        assertEquals("8,4,2", policy.getFpsSpec());
+    }
+
+    @Test
+    public void configuredActionsPerLevel() {
+        ThermalPolicy policy = new ThermalPolicy();
+        policy.configure(new int[] { 380, 400, 430, 470 }, 20, new float[] { 10, 2.5f, 1 }, 30);
+        float[] fps = { FrameRateGovernor.FULL_FPS, 10, 2.5f, 1, 1 };
+        int[] quality = { EncodedFrame.QUALITY_STREAM, EncodedFrame.QUALITY_STREAM, 30, 30, 30 };
+        for (int level = ThermalPolicy.LEVEL_NORMAL; level <= ThermalPolicy.LEVEL_CRITICAL; level++) {
+            String name = ThermalPolicy.nameOf(level);
+            assertEquals(name, fps[level], policy.maxFpsOf(level), DELTA);
+            assertEquals(name, quality[level], policy.streamQualityOf(level));
+        }
+        assertEquals("38,40,43,47", policy.getThresholdsSpec());
+        assertEquals("2", policy.getHysteresisSpec());
+        assertEquals("10,2.5,1", policy.getFpsSpec());
+
+        // The new thresholds and hysteresis drive the ladder
+        assertEquals(ThermalPolicy.LEVEL_WARM, policy.evaluate(381));
+        assertEquals(ThermalPolicy.LEVEL_WARM, policy.evaluate(360));
+        assertEquals(ThermalPolicy.LEVEL_NORMAL, policy.evaluate(359));
+    }
+
+    @Test
+    public void invalidConfigurationChangesNothing() {
+        ThermalPolicy policy = new ThermalPolicy();
+        float[] fps = { 8, 4, 2 };
+        rejects(policy, new int[] { 420, 450, 480 }, HYSTERESIS, fps, 40);
+        rejects(policy, new int[] { 420, 450, 450, 520 }, HYSTERESIS, fps, 40);
+        rejects(policy, THRESHOLDS, -1, fps, 40);
+        rejects(policy, THRESHOLDS, HYSTERESIS, new float[] { 8, 4 }, 40);
+        rejects(policy, THRESHOLDS, HYSTERESIS, new float[] { 4, 8, 2 }, 40);
+        rejects(policy, THRESHOLDS, HYSTERESIS, new float[] { 8, 4, 0 }, 40);
+        rejects(policy, THRESHOLDS, HYSTERESIS, new float[] { Float.NaN, 4, 2 }, 40);
+        rejects(policy, THRESHOLDS, HYSTERESIS, fps, 0);
+        rejects(policy, THRESHOLDS, HYSTERESIS, fps, 101);
+    }
+
+    @Test
+    public void parsesSettingsFormat() {
+        assertEquals(455, ThermalPolicy.parseTenths("45.5"));
+        int[] thresholds = ThermalPolicy.parseThresholds("42, 45,48,52");
+        for (int i = 0; i < THRESHOLDS.length; i++) {
+            assertEquals(THRESHOLDS[i], thresholds[i]);
+        }
+        float[] fps = ThermalPolicy.parseFps("8,4,2.5");
+        assertEquals(3, fps.length);
+        assertEquals(2.5f, fps[2], DELTA);
+    }
+
+    @Test
+    public void guardianFollowsFakeSensor() {
+        final int[] temperatures = { 300, 421, FAILED, 451, 410, 399, 369, FAILED };
+        final int[] next = { 0 };
+        ThermalGuardian guardian = new ThermalGuardian(new ThermalGuardian.TemperatureSource() {
+            @Override
+            public int readTemperature() throws IOException {
+                int temperature = temperatures[next[0]++];
+                if (temperature == FAILED)
+                    throw new IOException("Sensor glitch");
+                return temperature;
+            }
+        });
+        final List<String> changes = new ArrayList<String>();
+        guardian.setListener(new ThermalGuardian.Listener() {
+            @Override
+            public void onLevelChanged(int from, int to, int temperature) {
+                changes.add(ThermalPolicy.nameOf(from) + ">" + ThermalPolicy.nameOf(to) + "@" + temperature);
+            }
+        });
+
+        int[] levels = { ThermalPolicy.LEVEL_NORMAL, ThermalPolicy.LEVEL_WARM, ThermalPolicy.LEVEL_WARM,
+                ThermalPolicy.LEVEL_HOT, ThermalPolicy.LEVEL_HOT, ThermalPolicy.LEVEL_WARM,
+                ThermalPolicy.LEVEL_NORMAL, ThermalPolicy.LEVEL_NORMAL };
+        for (int i = 0; i < temperatures.length; i++) {
+            ThermalGuardian.Reading reading = guardian.sample();
+            String where = "sample " + i;
+            assertEquals(where, levels[i], reading.level);
+            assertEquals(where, levels[i], guardian.getLevel());
+            assertEquals(where, temperatures[i] == FAILED ? ThermalGuardian.UNKNOWN : temperatures[i],
+                    reading.temperature);
+        }
+        assertEquals("[normal>warm@421, warm>hot@451, hot>warm@399, warm>normal@369]", changes.toString());
+        assertEquals(0, guardian.getTemperatureCelsius()); // Last read failed
+    }
+
+    /** @return a default policy brought up to <code>level</code> from normal. */
+    private static ThermalPolicy policyAt(int level) {
+        ThermalPolicy policy = new ThermalPolicy();
+        if (level > ThermalPolicy.LEVEL_NORMAL)
+            assertEquals(level, policy.evaluate(THRESHOLDS[level - 1] + 1));
+        return policy;
+    }
+
+    private static void rejects(ThermalPolicy policy, int[] thresholds, int hysteresis, float[] fps,
+                                int quality) {
+        try {
+            policy.configure(thresholds, hysteresis, fps, quality);
+            fail("Accepted invalid configuration");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+        assertEquals("42,45,48,52", policy.getThresholdsSpec());
+        assertEquals("5", policy.getHysteresisSpec());
+        assertEquals("8,4,2", policy.getFpsSpec());
+        assertEquals(ThermalPolicy.DEFAULT_HOT_JPEG_QUALITY, policy.getHotJpegQuality());
+    }
+}